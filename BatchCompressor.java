@@ -0,0 +1,190 @@
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+// Compresses many images in one JVM, several at a time, and saves the
+// commands of each one next to it in a .drawing file. Prints one line per
+// image with its number of commands, the size of its .drawing file and the
+// time it took, then the totals.
+//
+// Usage: java BatchCompressor [-j threads] [--tiled | --strategy name] <directory or glob>...
+//
+// A directory stands for the files directly in it, and a glob such as
+// "pixel-art/pixel-art*" or "images/**" for the files under the directory
+// before its first wildcard that match it. Files written by this or the
+// other commands (.drawing, .drawb, .drawz and .png) are left out. Images
+// that cannot be read or compressed are reported and skipped, and make the
+// exit code 1.
+public class BatchCompressor
+{
+
+    private static final String[] OUTPUT_EXTENSIONS = {".drawing", ".drawb", ".drawz", ".png"};
+
+    // What compressing one image gave
+    static class Result
+    {
+        final Path file;
+
+        final int commands;
+
+        final long bytes;
+
+        final long millis;
+
+        Result(Path file, int commands, long bytes, long millis)
+        {
+            this.file = file;
+            this.commands = commands;
+            this.bytes = bytes;
+            this.millis = millis;
+        }
+
+        public String toString()
+        {
+            return file + "\t" + commands + " commands\t" + bytes + " bytes\t" + millis + " ms";
+        }
+    }
+
+    // Find the images given by a directory or a glob, in name order
+    static List<Path> findImages(String pattern) throws IOException
+    {
+        Path path = Paths.get(pattern);
+        if (Files.isDirectory(path)) {
+            try (Stream<Path> files = Files.list(path)) {
+                return files.filter(BatchCompressor::isImage).sorted().collect(Collectors.toList());
+            }
+        }
+
+        // The directory part of the glob before its first wildcard
+        int wildcard = 0;
+        while (wildcard < pattern.length() && "*?[{".indexOf(pattern.charAt(wildcard)) < 0)
+            wildcard++;
+        int slash = pattern.lastIndexOf('/', wildcard);
+        Path base = Paths.get(slash < 0 ? "." : pattern.substring(0, slash + 1));
+        PathMatcher matcher = FileSystems.getDefault().getPathMatcher("glob:" + pattern.substring(slash + 1));
+
+        if (!Files.isDirectory(base))
+            return new ArrayList<>();
+
+        try (Stream<Path> files = Files.walk(base)) {
+            return files.filter(f -> matcher.matches(base.relativize(f)))
+                    .filter(BatchCompressor::isImage)
+                    .sorted()
+                    .collect(Collectors.toList());
+        }
+    }
+
+    private static boolean isImage(Path file)
+    {
+        if (!Files.isRegularFile(file))
+            return false;
+
+        String name = file.getFileName().toString();
+        for (String extension : OUTPUT_EXTENSIONS) {
+            if (name.endsWith(extension))
+                return false;
+        }
+
+        return true;
+    }
+
+    // Compress the image in the file and save the commands in a .drawing
+    // file next to it
+    static Result compress(Path file, CompressionStrategy strategy) throws IOException, BadFormat
+    {
+        long start = System.nanoTime();
+
+        Image image = Image.read(file.toString());
+        Drawing drawing = image.compress(strategy);
+
+        Path output = Paths.get(file + ".drawing");
+        try (OutputStream out = Files.newOutputStream(output)) {
+            drawing.write(out);
+        }
+
+        long millis = (System.nanoTime() - start) / 1000000;
+        return new Result(file, drawing.commands.size(), Files.size(output), millis);
+    }
+
+    public static void main(String[] args) throws InterruptedException
+    {
+        int threads = Runtime.getRuntime().availableProcessors();
+        CompressionStrategy strategy = CompressionStrategy.GREEDY;
+        List<String> patterns = new ArrayList<>();
+
+        for (int k = 0; k < args.length; k++) {
+            if (args[k].equals("-j") && k + 1 < args.length) {
+                threads = Integer.parseInt(args[++k]);
+            } else if (args[k].equals("--tiled")) {
+                strategy = CompressionStrategy.TILED;
+            } else if (args[k].equals("--strategy") && k + 1 < args.length) {
+                strategy = CompressionStrategy.forName(args[++k]);
+            } else {
+                patterns.add(args[k]);
+            }
+        }
+
+        if (patterns.isEmpty() || threads < 1 || strategy == null) {
+            System.out.println("Usage: java BatchCompressor [-j threads] [--tiled | --strategy name] <directory or glob>...");
+            System.exit(1);
+        }
+
+        List<Path> files = new ArrayList<>();
+        for (String pattern : patterns) {
+            try {
+                List<Path> found = findImages(pattern);
+                if (found.isEmpty())
+                    System.out.println("No images match: " + pattern);
+                files.addAll(found);
+            } catch (IOException e) {
+                System.out.println("Unable to list " + pattern + ": " + e.getMessage());
+                System.exit(1);
+            }
+        }
+
+        // At most `threads` images are in memory and being compressed at once
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        List<Future<Result>> results = new ArrayList<>();
+        long start = System.nanoTime();
+        final CompressionStrategy chosen = strategy;
+        for (Path file : files)
+            results.add(pool.submit(() -> compress(file, chosen)));
+        pool.shutdown();
+
+        // Report in the order of the files, however they finish
+        long commands = 0;
+        long bytes = 0;
+        int failures = 0;
+        for (int k = 0; k < files.size(); k++) {
+            try {
+                Result r = results.get(k).get();
+                System.out.println(r);
+                commands += r.commands;
+                bytes += r.bytes;
+            } catch (ExecutionException e) {
+                Throwable cause = e.getCause();
+                String reason = cause instanceof BadFormat ? cause.getMessage() : cause.toString();
+                System.out.println(files.get(k) + "\tfailed: " + reason);
+                failures++;
+            }
+        }
+
+        long millis = (System.nanoTime() - start) / 1000000;
+        System.out.println(files.size() + " images\t" + commands + " commands\t" + bytes + " bytes\t" + millis + " ms");
+
+        if (failures > 0)
+            System.exit(1);
+    }
+}
@@ -0,0 +1,157 @@
+import java.util.ArrayList;
+import java.util.List;
+
+// Looks further ahead than the Compressor, which always paints the longest
+// line it can from the cursor, moves to the nearest place to paint from and
+// draws the colours from the most present, although other choices may lead
+// to fewer commands in the end.
+//
+// The search keeps the few most promising partial drawings, each scored by
+// the commands it has plus the commands the Compressor adds to finish it.
+// Each step follows the Compressor from every one of them up to where it
+// has such a choice, and tries each way of making it. The new partial
+// drawings are finished and scored in parallel, and the best ones are kept
+// for the next step.
+//
+// Every finished drawing is a complete one, and the one with the fewest
+// commands is returned when the search ends or runs out of time. The first
+// one is what the Compressor draws by itself, so the result never has more
+// commands than that.
+class BeamCompressor implements CompressionStrategy
+{
+
+    // The most places to try moving the cursor to
+    private static final int MOVES = 4;
+
+    private final int width;
+
+    private final long budget;
+
+    // Keep `width` partial drawings per step, and stop looking after
+    // `millis` milliseconds
+    BeamCompressor(int width, long millis)
+    {
+        this.width = width;
+        this.budget = millis * 1000000;
+    }
+
+    // A partial drawing and the number of commands it ends up with when the
+    // Compressor finishes it, or -1 until it is known
+    private static class Node
+    {
+        final Compressor state;
+
+        int score;
+
+        Drawing finished;
+
+        Node(Compressor state, int score)
+        {
+            this.state = state;
+            this.score = score;
+        }
+
+        // Let a copy of the Compressor finish, unless it takes past the
+        // deadline
+        void finish(long deadline)
+        {
+            Compressor c = new Compressor(state);
+            while (!c.isDone()) {
+                if (System.nanoTime() > deadline)
+                    return;
+                c.computeNextCommand();
+            }
+
+            finished = c.drawing;
+            score = finished.commands.size();
+        }
+    }
+
+    public Drawing compress(Image image)
+    {
+        long deadline = System.nanoTime() + budget;
+
+        Compressor root = new Compressor(image);
+        Drawing best = new Compressor(root).compress();
+
+        List<Node> beam = new ArrayList<>();
+        beam.add(new Node(root, best.commands.size()));
+
+        while (!beam.isEmpty() && System.nanoTime() < deadline) {
+            List<Node> children = new ArrayList<>();
+            for (Node n : beam) {
+                Compressor c = n.state;
+                List<Compressor> branches = branch(c);
+                while (!c.isDone() && branches.isEmpty() && System.nanoTime() < deadline) {
+                    c.computeNextCommand();
+                    branches = branch(c);
+                }
+
+                // The first branch is the Compressor's own, which finishes
+                // like this partial drawing already did
+                for (int k = 0; k < branches.size(); k++)
+                    children.add(new Node(branches.get(k), k == 0 ? n.score : -1));
+            }
+
+            children.parallelStream()
+                    .filter(n -> n.score < 0)
+                    .forEach(n -> n.finish(deadline));
+
+            // Drop what could not be scored in time
+            children.removeIf(n -> n.score < 0);
+
+            for (Node n : children) {
+                if (n.finished != null && n.score < best.commands.size()) {
+                    best = n.finished;
+                }
+                n.finished = null;
+            }
+
+            children.sort((n1, n2) -> Integer.compare(n1.score, n2.score));
+            beam = new ArrayList<>(children.subList(0, Math.min(width, children.size())));
+        }
+
+        return best;
+    }
+
+    // The ways the partial drawing can go on, the Compressor's own first: the
+    // lines that can be painted from the cursor, or the colors that can come
+    // next once the current one is drawn. None if there is only one way.
+    private static List<Compressor> branch(Compressor c)
+    {
+        List<Compressor> branches = new ArrayList<>();
+        if (c.isDone())
+            return branches;
+
+        List<DirectionLength> lines = c.getPaintChoices();
+        if (lines.size() >= 2) {
+            for (DirectionLength dl : lines) {
+                Compressor child = new Compressor(c);
+                child.paint(dl);
+                branches.add(child);
+            }
+            return branches;
+        }
+
+        List<Coordinate> targets = c.getMoveChoices(MOVES);
+        if (targets.size() >= 2) {
+            for (Coordinate target : targets) {
+                Compressor child = new Compressor(c);
+                child.moveTo(target);
+                branches.add(child);
+            }
+            return branches;
+        }
+
+        List<Integer> colors = c.getColorChoices();
+        if (colors.size() >= 2) {
+            for (int color : colors) {
+                Compressor child = new Compressor(c);
+                child.nextColor(color);
+                branches.add(child);
+            }
+        }
+
+        return branches;
+    }
+}
@@ -0,0 +1,168 @@
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+// Reads and writes the binary .drawb form of a Drawing:
+//
+//   "DRWB"                 4 bytes, to recognise the format
+//   height, width          unsigned LEB128 each
+//   background             1 byte
+//   then for each command:
+//     code                 1 byte, laid out like in CommandBuffer:
+//                          colour in bits 0-3, paint in bit 4, direction in
+//                          bits 5-6
+//     distance             unsigned LEB128 of the 32 bits of the distance
+//
+// until the end of the stream. A command such as "right 17 f" takes 2 bytes
+// instead of 11 in the text format.
+class BinaryDrawing
+{
+
+    static final byte[] MAGIC = {'D', 'R', 'W', 'B'};
+
+    private final InputStream in;
+
+    private final byte[] buffer = new byte[1 << 16];
+
+    private int position = 0;
+
+    private int limit = 0;
+
+    private BinaryDrawing(InputStream in)
+    {
+        this.in = in;
+    }
+
+    static void write(Drawing d, OutputStream out) throws IOException
+    {
+        byte[] chunk = new byte[1 << 16];
+        int n = 0;
+
+        for (byte b : MAGIC)
+            chunk[n++] = b;
+        n = putVarint(chunk, n, d.height);
+        n = putVarint(chunk, n, d.width);
+        chunk[n++] = (byte) d.background;
+
+        writeCommands(d.commands, chunk, n, out);
+    }
+
+    // Write the commands in this format after the first n bytes of the
+    // chunk, which are written first. DrawingArchive stores commands this
+    // way when range coding would not make them smaller.
+    static void writeCommands(CommandBuffer commands, byte[] chunk, int n, OutputStream out) throws IOException
+    {
+        for (int k = 0; k < commands.size(); k++) {
+            // A code and the longest distance take 6 bytes
+            if (n > chunk.length - 6) {
+                out.write(chunk, 0, n);
+                n = 0;
+            }
+
+            chunk[n++] = commands.getCode(k);
+            n = putVarint(chunk, n, commands.getDistance(k));
+        }
+
+        out.write(chunk, 0, n);
+        out.flush();
+    }
+
+    static Drawing read(InputStream in) throws IOException, BadFormat
+    {
+        BinaryDrawing reader = new BinaryDrawing(in);
+
+        for (byte b : MAGIC) {
+            if (reader.next() != b)
+                throw new BadFormat("Not a binary drawing");
+        }
+
+        int height = reader.nextVarint();
+        int width = reader.nextVarint();
+        if (height < 0 || width < 0)
+            throw new BadFormat("Bad size: " + height + "x" + width);
+
+        int background = reader.next();
+        if (background < 0)
+            throw new EOFException("Missing background colour");
+        if (background > 15)
+            throw new BadFormat("Bad background colour: " + background);
+
+        Drawing d = new Drawing(height, width, background);
+        reader.readCommands(d.commands);
+
+        return d;
+    }
+
+    // Read the rest of the stream as commands in this format
+    static void readCommands(InputStream in, CommandBuffer commands) throws IOException, BadFormat
+    {
+        new BinaryDrawing(in).readCommands(commands);
+    }
+
+    private void readCommands(CommandBuffer commands) throws IOException, BadFormat
+    {
+        for (int code = next(); code >= 0; code = next()) {
+            // Bit 7 is unused, and only painting commands have a colour
+            if (code >= 0x80 || ((code & 0x10) == 0 && (code & 0xF) != 0))
+                throw new BadFormat("Bad command code: " + code);
+
+            commands.addCode((byte) code, nextVarint());
+        }
+    }
+
+    // The number of bytes writeCommands takes for the commands
+    static long commandsSize(CommandBuffer commands)
+    {
+        long size = 0;
+        for (int k = 0; k < commands.size(); k++)
+            size += 1 + varintSize(commands.getDistance(k));
+        return size;
+    }
+
+    static int putVarint(byte[] b, int n, int value)
+    {
+        while ((value & ~0x7F) != 0) {
+            b[n++] = (byte) ((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        b[n++] = (byte) value;
+        return n;
+    }
+
+    static int varintSize(int value)
+    {
+        return value == 0 ? 1 : (38 - Integer.numberOfLeadingZeros(value)) / 7;
+    }
+
+    private int nextVarint() throws IOException, BadFormat
+    {
+        int value = 0;
+        for (int shift = 0; shift < 35; shift += 7) {
+            int b = next();
+            if (b < 0)
+                throw new EOFException("Truncated distance");
+
+            value |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0)
+                return value;
+        }
+
+        throw new BadFormat("Distance longer than 5 bytes");
+    }
+
+    // The next byte, or -1 at the end of the stream
+    private int next() throws IOException
+    {
+        if (position == limit) {
+            limit = in.read(buffer, 0, buffer.length);
+            position = 0;
+            if (limit <= 0) {
+                limit = 0;
+                return -1;
+            }
+        }
+
+        return buffer[position++] & 0xFF;
+    }
+}
@@ -0,0 +1,105 @@
+import java.util.Arrays;
+
+// A growable list of drawing commands stored as parallel arrays rather than
+// one DrawingCommand object each. The direction, paint flag and colour of a
+// command share one byte:
+//
+//   bits 0-3  colour (0 when not painting)
+//   bit  4    paint
+//   bits 5-6  direction, as Direction.ordinal()
+//
+// and the distance is kept in an int array. Commands are read back by index,
+// so going through them allocates nothing.
+class CommandBuffer
+{
+
+    private static final Direction[] DIRECTIONS = Direction.values();
+
+    private static final int PAINT = 0x10;
+
+    private byte[] codes;
+
+    private int[] distances;
+
+    private int size = 0;
+
+    CommandBuffer()
+    {
+        this(16);
+    }
+
+    CommandBuffer(int capacity)
+    {
+        codes = new byte[Math.max(capacity, 1)];
+        distances = new int[Math.max(capacity, 1)];
+    }
+
+    // A copy of the commands of another buffer, which can then be added to
+    // separately
+    CommandBuffer(CommandBuffer other)
+    {
+        codes = other.codes.clone();
+        distances = other.distances.clone();
+        size = other.size;
+    }
+
+    public int size()
+    {
+        return size;
+    }
+
+    public void add(DrawingCommand c)
+    {
+        add(c.dir, c.distance, c.paint, c.colour);
+    }
+
+    public void add(Direction dir, int distance, boolean paint, int colour)
+    {
+        addCode((byte) (dir.ordinal() << 5 | (paint ? PAINT | (colour & 0xF) : 0)), distance);
+    }
+
+    // Add a command given its direction, paint flag and colour byte
+    void addCode(byte code, int distance)
+    {
+        if (size == codes.length) {
+            codes = Arrays.copyOf(codes, size * 2);
+            distances = Arrays.copyOf(distances, size * 2);
+        }
+
+        codes[size] = code;
+        distances[size] = distance;
+        size++;
+    }
+
+    // Get the direction, paint flag and colour byte of command i
+    byte getCode(int i)
+    {
+        return codes[i];
+    }
+
+    public Direction getDirection(int i)
+    {
+        return DIRECTIONS[(codes[i] >>> 5) & 0x3];
+    }
+
+    public int getDistance(int i)
+    {
+        return distances[i];
+    }
+
+    public boolean isPaint(int i)
+    {
+        return (codes[i] & PAINT) != 0;
+    }
+
+    public int getColour(int i)
+    {
+        return codes[i] & 0xF;
+    }
+
+    // Get a copy of command i as an object
+    public DrawingCommand get(int i)
+    {
+        return new DrawingCommand(getDirection(i), getDistance(i), isPaint(i), getColour(i));
+    }
+}
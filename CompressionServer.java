@@ -0,0 +1,277 @@
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+// Serves compression and drawing over HTTP on the loopback interface, so
+// that many images can go through one warm JVM:
+//
+//   POST /compress   body: an image in the text format
+//                    reply: its drawing in the text format, or with
+//                    ?format=binary in the .drawb format and with
+//                    ?format=archive in the .drawz format
+//   POST /draw       body: a drawing in the text, .drawb or .drawz format,
+//                    told apart by their first bytes
+//                    reply: the image it draws, in the text format
+//
+// A malformed body or a command painting outside of the drawing gets a 400
+// with the error message. So that a request cannot run the server out of
+// memory, images over the maximum number of pixels and drawings over the
+// maximum number of commands get a 413. So do drawings of such images, and
+// bodies too long to hold anything within the limits. Anything else that
+// goes wrong gets a 500, even running out of memory, so every request gets
+// a reply. Connections are kept alive between requests, and requests are
+// handled on a fixed pool of threads.
+//
+// Usage: java CompressionServer [port] [threads] [max pixels] [max commands]
+public class CompressionServer
+{
+
+    static final int DEFAULT_PORT = 8518;
+
+    static final long DEFAULT_MAX_PIXELS = 1 << 24;
+
+    static final int DEFAULT_MAX_COMMANDS = 1 << 20;
+
+    // What a request is given to, which may throw anything
+    private interface Handler
+    {
+        void handle(HttpExchange exchange) throws Exception;
+    }
+
+    // A body or what it holds is over the limits
+    private static class TooLarge extends Exception
+    {
+        TooLarge(String message)
+        {
+            super(message);
+        }
+    }
+
+    private final HttpServer server;
+
+    private final ExecutorService executor;
+
+    private final long maxPixels;
+
+    private final int maxCommands;
+
+    CompressionServer(int port, int threads) throws IOException
+    {
+        this(port, threads, DEFAULT_MAX_PIXELS, DEFAULT_MAX_COMMANDS);
+    }
+
+    CompressionServer(int port, int threads, long maxPixels, int maxCommands) throws IOException
+    {
+        this.maxPixels = maxPixels;
+        this.maxCommands = maxCommands;
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+        executor = Executors.newFixedThreadPool(threads);
+        server.setExecutor(executor);
+        server.createContext("/compress", exchange -> handle(exchange, this::compress));
+        server.createContext("/draw", exchange -> handle(exchange, this::draw));
+    }
+
+    void start()
+    {
+        server.start();
+    }
+
+    void stop()
+    {
+        server.stop(0);
+        executor.shutdown();
+    }
+
+    // The port listened on, which is chosen by the system when 0 is given
+    int getPort()
+    {
+        return server.getAddress().getPort();
+    }
+
+    // Run the handler, and reply with a 500 if it throws before replying,
+    // even when it runs out of memory. The exchange is always closed.
+    private static void handle(HttpExchange exchange, Handler handler)
+    {
+        try {
+            handler.handle(exchange);
+        } catch (Throwable e) {
+            if (exchange.getResponseCode() < 0) {
+                try {
+                    send(exchange, 500, "text/plain", e.toString());
+                } catch (Throwable ignored) {
+                    // The connection is gone, or memory still is
+                }
+            }
+        } finally {
+            exchange.close();
+        }
+    }
+
+    private void compress(HttpExchange exchange) throws IOException
+    {
+        if (!isPost(exchange))
+            return;
+
+        try {
+            // A text image takes at most 3 bytes per pixel, with one pixel
+            // and a CRLF on each line
+            byte[] body = readAll(exchange.getRequestBody(), 3 * maxPixels + 2);
+
+            // The lines give the size, which is checked before the image is
+            // allocated
+            ImageDecoder decoder = ImageDecoder.scan(ByteBuffer.wrap(body), "Empty image");
+            checkSize(decoder.getHeight(), decoder.getWidth());
+            Image image = Image.read(decoder);
+            Drawing d = image.compress();
+
+            String query = exchange.getRequestURI().getQuery();
+            if ("format=binary".equals(query)) {
+                ByteArrayOutputStream out = new ByteArrayOutputStream();
+                d.writeBinary(out);
+                send(exchange, 200, "application/octet-stream", out.toByteArray());
+            } else if ("format=archive".equals(query)) {
+                ByteArrayOutputStream out = new ByteArrayOutputStream();
+                d.writeArchive(out);
+                send(exchange, 200, "application/octet-stream", out.toByteArray());
+            } else {
+                ByteArrayOutputStream out = new ByteArrayOutputStream();
+                d.write(out);
+                send(exchange, 200, "text/plain; charset=utf-8", out.toByteArray());
+            }
+        } catch (BadFormat e) {
+            send(exchange, 400, "text/plain", e.getMessage());
+        } catch (TooLarge e) {
+            send(exchange, 413, "text/plain", e.getMessage());
+        }
+    }
+
+    private void draw(HttpExchange exchange) throws IOException
+    {
+        if (!isPost(exchange))
+            return;
+
+        try {
+            // The text format is the longest, with the three header lines
+            byte[] body = readAll(exchange.getRequestBody(), (long) maxCommands * Drawing.LONGEST_COMMAND + 64);
+            InputStream in = new ByteArrayInputStream(body);
+
+            Drawing d;
+            if (startsWith(body, BinaryDrawing.MAGIC))
+                d = Drawing.readBinary(in);
+            else if (startsWith(body, DrawingArchive.MAGIC))
+                d = Drawing.readArchive(in, maxCommands);
+            else
+                d = Drawing.read(in);
+
+            checkSize(d.height, d.width);
+            if (d.commands.size() > maxCommands)
+                throw new TooLarge("Too many commands: " + d.commands.size() + ", at most " + maxCommands);
+
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            d.draw().write(out);
+            send(exchange, 200, "text/plain; charset=utf-8", out.toByteArray());
+        } catch (EOFException e) {
+            send(exchange, 400, "text/plain", "Truncated drawing: " + e.getMessage());
+        } catch (BadFormat | BadCommand e) {
+            send(exchange, 400, "text/plain", e.getMessage());
+        } catch (TooLarge e) {
+            send(exchange, 413, "text/plain", e.getMessage());
+        }
+    }
+
+    private void checkSize(int height, int width) throws BadFormat, TooLarge
+    {
+        if (height < 0 || width < 0)
+            throw new BadFormat("Bad size: " + height + "x" + width);
+        if ((long) height * width > maxPixels)
+            throw new TooLarge("Image too large: " + height + "x" + width + ", at most " + maxPixels + " pixels");
+    }
+
+    private static boolean isPost(HttpExchange exchange) throws IOException
+    {
+        if (exchange.getRequestMethod().equals("POST"))
+            return true;
+
+        exchange.getResponseHeaders().set("Allow", "POST");
+        send(exchange, 405, "text/plain", "Only POST is supported");
+        return false;
+    }
+
+    private static boolean startsWith(byte[] body, byte[] magic)
+    {
+        if (body.length < magic.length)
+            return false;
+
+        for (int i = 0; i < magic.length; i++) {
+            if (body[i] != magic[i])
+                return false;
+        }
+
+        return true;
+    }
+
+    // Read the whole body, unless it is longer than limit bytes
+    private static byte[] readAll(InputStream in, long limit) throws IOException, TooLarge
+    {
+        ByteArrayOutputStream data = new ByteArrayOutputStream();
+        byte[] chunk = new byte[1 << 16];
+        for (int n = in.read(chunk); n >= 0; n = in.read(chunk)) {
+            if (data.size() + n > limit)
+                throw new TooLarge("Body longer than " + limit + " bytes");
+            data.write(chunk, 0, n);
+        }
+        return data.toByteArray();
+    }
+
+    // Read what is left of the body without keeping it
+    private static void drain(InputStream in) throws IOException
+    {
+        byte[] chunk = new byte[1 << 16];
+        while (in.read(chunk) >= 0) {
+            // Nothing to keep
+        }
+    }
+
+    private static void send(HttpExchange exchange, int status, String type, String text) throws IOException
+    {
+        send(exchange, status, type + "; charset=utf-8", text.getBytes(StandardCharsets.UTF_8));
+    }
+
+    // Reply with a known length, so that the connection can be kept alive
+    private static void send(HttpExchange exchange, int status, String type, byte[] body) throws IOException
+    {
+        // What is left of the request has to be read for the next one. The
+        // body is not read with skip(), which is not bounded by its length.
+        drain(exchange.getRequestBody());
+
+        exchange.getResponseHeaders().set("Content-Type", type);
+        exchange.sendResponseHeaders(status, body.length == 0 ? -1 : body.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(body);
+        }
+    }
+
+    public static void main(String[] args) throws IOException
+    {
+        int port = args.length > 0 ? Integer.parseInt(args[0]) : DEFAULT_PORT;
+        int threads = args.length > 1 ? Integer.parseInt(args[1]) : Runtime.getRuntime().availableProcessors();
+        long maxPixels = args.length > 2 ? Long.parseLong(args[2]) : DEFAULT_MAX_PIXELS;
+        int maxCommands = args.length > 3 ? Integer.parseInt(args[3]) : DEFAULT_MAX_COMMANDS;
+
+        CompressionServer server = new CompressionServer(port, threads, maxPixels, maxCommands);
+        server.start();
+        System.out.println("Listening on http://localhost:" + server.getPort() + "/");
+    }
+}
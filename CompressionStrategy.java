@@ -0,0 +1,210 @@
+// A way of turning an Image into a Drawing of it. The strategies differ in
+// how few commands they find and how long they take to find them:
+//
+//   GREEDY    the Compressor: usually the fewest commands, but slow
+//   TILED     the Compressor on tiles in parallel, see TiledCompressor
+//   ROWS      one command per run of a colour along each row, in one pass
+//   COLUMNS   the same along each column
+//   SCANLINE  the same along rows taken right, then left, and so on, reading
+//             the packed pixels directly: fastest
+//   BEST      all of the above, keeping the drawing with fewest commands
+//   BEAM      the Compressor looking ahead for a few seconds, see
+//             BeamCompressor: fewer commands than GREEDY, but slowest
+public interface CompressionStrategy
+{
+
+    Drawing compress(Image image);
+
+    CompressionStrategy GREEDY = image -> new Compressor(image).compress();
+
+    CompressionStrategy TILED = Image::compressTiled;
+
+    CompressionStrategy ROWS = new RunLengthCompressor(false);
+
+    CompressionStrategy COLUMNS = new RunLengthCompressor(true);
+
+    CompressionStrategy SCANLINE = new ScanlineCompressor();
+
+    CompressionStrategy BEST = new BestOfCompressor(GREEDY, TILED, ROWS, COLUMNS, SCANLINE);
+
+    CompressionStrategy BEAM = new BeamCompressor(8, 5000);
+
+    // The strategy with the given name in lower case, or null if there is
+    // none
+    static CompressionStrategy forName(String name)
+    {
+        switch (name) {
+            case "greedy":
+                return GREEDY;
+            case "tiled":
+                return TILED;
+            case "rows":
+                return ROWS;
+            case "columns":
+                return COLUMNS;
+            case "scanline":
+                return SCANLINE;
+            case "best":
+                return BEST;
+            case "beam":
+                return BEAM;
+            default:
+                return null;
+        }
+    }
+}
+
+// Paints each run of a colour other than the background along each row, or
+// each column, with one command, moving the cursor just before the run first
+// if it is not there already. Lines are done in order and each from its
+// start, so the number of commands only depends on the runs.
+class RunLengthCompressor implements CompressionStrategy
+{
+
+    private final boolean columns;
+
+    RunLengthCompressor(boolean columns)
+    {
+        this.columns = columns;
+    }
+
+    public Drawing compress(Image image)
+    {
+        int background = Compressor.chooseBackground(image);
+        Drawing d = new Drawing(image.getHeight(), image.getWidth(), background);
+
+        int lines = columns ? image.getWidth() : image.getHeight();
+        int length = columns ? image.getHeight() : image.getWidth();
+        Direction next = columns ? Direction.RIGHT : Direction.DOWN;
+        Direction forward = columns ? Direction.DOWN : Direction.RIGHT;
+        Direction backward = columns ? Direction.UP : Direction.LEFT;
+
+        // The cursor, as a line and a position along it
+        int line = 0;
+        int position = 0;
+
+        for (int l = 0; l < lines; l++) {
+            int start = 0;
+            while (start < length) {
+                int colour = pixel(image, l, start);
+                int end = start;
+                while (end + 1 < length && pixel(image, l, end + 1) == colour)
+                    end++;
+
+                if (colour != background) {
+                    if (line != l) {
+                        d.addCommand(next, l - line, false, 0);
+                        line = l;
+                    }
+                    if (position != start - 1) {
+                        d.addCommand(position < start - 1 ? forward : backward, Math.abs(start - 1 - position), false, 0);
+                    }
+                    d.addCommand(forward, end - start + 1, true, colour);
+                    position = end;
+                }
+
+                start = end + 1;
+            }
+        }
+
+        return d;
+    }
+
+    private int pixel(Image image, int line, int position)
+    {
+        return columns ? image.get(line, position) : image.get(position, line);
+    }
+}
+
+// Paints each run of a colour other than the background with one command,
+// going right across the first row, left across the second, and so on, so
+// that the cursor starts each row near where it ended the previous one. Runs
+// are found straight in the packed words of the Image, up to 16 pixels at a
+// time, and nothing is allocated besides the commands.
+class ScanlineCompressor implements CompressionStrategy
+{
+
+    public Drawing compress(Image image)
+    {
+        int height = image.getHeight();
+        int width = image.getWidth();
+        int background = Compressor.chooseBackground(image);
+        Drawing d = new Drawing(height, width, background);
+
+        // The cursor
+        int cx = 0;
+        int cy = 0;
+
+        for (int y = 0; y < height; y++) {
+            boolean right = (y & 1) == 0;
+            int x = right ? 0 : width - 1;
+            while (x >= 0 && x < width) {
+                int colour = (int) (image.getWord(y, x >>> 4) >>> ((x & 15) << 2)) & 0xF;
+                int end = right ? image.rowRunEnd(x, y) : image.rowRunStart(x, y);
+
+                if (colour != background) {
+                    if (cy != y) {
+                        d.addCommand(Direction.DOWN, y - cy, false, 0);
+                        cy = y;
+                    }
+
+                    // Paint from just before the run to its end
+                    int from = right ? x - 1 : x + 1;
+                    if (cx != from)
+                        d.addCommand(cx < from ? Direction.RIGHT : Direction.LEFT, Math.abs(from - cx), false, 0);
+                    d.addCommand(right ? Direction.RIGHT : Direction.LEFT, Math.abs(end - x) + 1, true, colour);
+                    cx = end;
+                }
+
+                x = right ? end + 1 : end - 1;
+            }
+        }
+
+        return d;
+    }
+}
+
+// Runs each of its strategies in turn and keeps the drawing with the fewest
+// commands, the first one on ties. Only drawings that draw the image back
+// are kept, so a strategy going wrong costs commands but never pixels.
+class BestOfCompressor implements CompressionStrategy
+{
+
+    private final CompressionStrategy[] strategies;
+
+    BestOfCompressor(CompressionStrategy... strategies)
+    {
+        this.strategies = strategies;
+    }
+
+    public Drawing compress(Image image)
+    {
+        Drawing best = null;
+        for (CompressionStrategy s : strategies) {
+            Drawing d;
+            try {
+                d = s.compress(image);
+            } catch (IllegalStateException e) {
+                continue;
+            }
+
+            if ((best == null || d.commands.size() < best.commands.size()) && draws(d, image)) {
+                best = d;
+            }
+        }
+
+        if (best == null)
+            throw new IllegalStateException("No strategy drew the image");
+
+        return best;
+    }
+
+    private static boolean draws(Drawing d, Image image)
+    {
+        try {
+            return image.contentEquals(d.draw());
+        } catch (BadCommand e) {
+            return false;
+        }
+    }
+}
@@ -30,7 +30,7 @@ class Coordinate implements Cloneable
     @Override
     public int hashCode()
     {
-        return x * y + y;
+        return 31 * x + y;
     }
 
     @Override
@@ -147,25 +147,11 @@ class InlinePixels
         }
 
         if (getOrientation() == Orientation.VERTICAL) {
-            boolean containsColor = false;
-            for (int y = 0; y < image.getHeight(); y++) {
-                if (image.get(from.x, y) == color) {
-                    containsColor = true;
-                }
-            }
-
-            return containsColor;
+            return image.columnContains(from.x, color);
         }
 
         if (getOrientation() == Orientation.HORIZONTAL) {
-            boolean containsColor = false;
-            for (int x = 0; x < image.getHeight(); x++) {
-                if (image.get(x, from.y) == color) {
-                    containsColor = true;
-                }
-            }
-
-            return containsColor;
+            return image.rowContains(from.y, color);
         }
 
         return false;
@@ -194,6 +180,217 @@ class InlinePixels
     }
 }
 
+/**
+ * Test applied to a pixel of a PixelSet
+ */
+interface PixelPredicate
+{
+    boolean test(int x, int y);
+}
+
+/**
+ * Stores a set of pixels as a dense bitmap, one bit per pixel keyed by y * width + x
+ */
+class PixelSet
+{
+    private final int width;
+
+    private final int height;
+
+    private final long[] words;
+
+    private int cardinality = 0;
+
+    PixelSet(int width, int height)
+    {
+        this.width = width;
+        this.height = height;
+        this.words = new long[(width * height + 63) >>> 6];
+    }
+
+    PixelSet(PixelSet other)
+    {
+        this.width = other.width;
+        this.height = other.height;
+        this.words = other.words.clone();
+        this.cardinality = other.cardinality;
+    }
+
+    /**
+     * @param x The x coordinate
+     * @param y The y coordinate
+     * @return Whether the pixel was not already in the set
+     */
+    public boolean add(int x, int y)
+    {
+        int index = y * width + x;
+        long mask = 1L << index;
+        long word = words[index >>> 6];
+
+        if ((word & mask) != 0) {
+            return false;
+        }
+
+        words[index >>> 6] = word | mask;
+        cardinality++;
+
+        return true;
+    }
+
+    /**
+     * @param x The x coordinate
+     * @param y The y coordinate
+     * @return Whether the pixel is in the set
+     */
+    public boolean contains(int x, int y)
+    {
+        int index = y * width + x;
+
+        return (words[index >>> 6] & (1L << index)) != 0;
+    }
+
+    /**
+     * @return Number of pixels in the set
+     */
+    public int cardinality()
+    {
+        return cardinality;
+    }
+
+    /**
+     * Remove every pixel matching the predicate
+     *
+     * @param predicate The predicate
+     * @return Whether anything has been removed
+     */
+    public boolean removeIf(PixelPredicate predicate)
+    {
+        int removed = 0;
+
+        for (int w = 0; w < words.length; w++) {
+            long word = words[w];
+            long remaining = word;
+
+            while (remaining != 0) {
+                long lowest = remaining & -remaining;
+                int index = (w << 6) + Long.numberOfTrailingZeros(lowest);
+
+                if (predicate.test(index % width, index / width)) {
+                    word &= ~lowest;
+                    removed++;
+                }
+
+                remaining &= ~lowest;
+            }
+
+            words[w] = word;
+        }
+
+        cardinality -= removed;
+
+        return removed > 0;
+    }
+
+    /**
+     * Empty the set
+     */
+    public void clear()
+    {
+        Arrays.fill(words, 0);
+        cardinality = 0;
+    }
+
+    public int getWidth()
+    {
+        return width;
+    }
+
+    public int getHeight()
+    {
+        return height;
+    }
+}
+
+/**
+ * Counts the drawable pixels not painted yet, per color and per column of the image
+ */
+class UndrawnIndex
+{
+    private final int[] perColor = new int[16];
+
+    private final int[][] perColumn;
+
+    private int total = 0;
+
+    UndrawnIndex(int width)
+    {
+        this.perColumn = new int[16][width];
+    }
+
+    UndrawnIndex(UndrawnIndex other)
+    {
+        this.perColumn = new int[16][];
+        for (int color = 0; color < 16; color++) {
+            this.perColumn[color] = other.perColumn[color].clone();
+            this.perColor[color] = other.perColor[color];
+        }
+        this.total = other.total;
+    }
+
+    /**
+     * Count a pixel as undrawn
+     *
+     * @param x     The x coordinate
+     * @param color The pixel color
+     */
+    public void add(int x, int color)
+    {
+        perColor[color]++;
+        perColumn[color][x]++;
+        total++;
+    }
+
+    /**
+     * Count a pixel as drawn
+     *
+     * @param x     The x coordinate
+     * @param color The pixel color
+     */
+    public void remove(int x, int color)
+    {
+        perColor[color]--;
+        perColumn[color][x]--;
+        total--;
+    }
+
+    /**
+     * @param color The color
+     * @return Number of undrawn pixels of the color
+     */
+    public int count(int color)
+    {
+        return perColor[color];
+    }
+
+    /**
+     * @param color The color
+     * @param x     The x coordinate
+     * @return Number of undrawn pixels of the color in the column
+     */
+    public int count(int color, int x)
+    {
+        return perColumn[color][x];
+    }
+
+    /**
+     * @return Number of undrawn pixels
+     */
+    public int total()
+    {
+        return total;
+    }
+}
+
 /**
  * The Compressor
  */
@@ -203,9 +400,21 @@ public class Compressor
 
     public Drawing drawing;
 
-    public HashSet<Coordinate> drawnCoordinates;
+    public PixelSet drawnCoordinates;
+
+    public boolean[] drawnColors;
+
+    /**
+     * Drawable pixels not yet in drawnCoordinates
+     */
+    private UndrawnIndex undrawn;
+
+    /**
+     * Column-major keys (x * height + y) gathered by findNearestTarget
+     */
+    private int[] candidates = new int[64];
 
-    public HashSet<Integer> drawnColors;
+    private int candidatesCount = 0;
 
     public Coordinate cursor = new Coordinate(0, 0);
 
@@ -213,57 +422,141 @@ public class Compressor
 
     public int currentColorIndex = 0;
 
+    /**
+     * Directions scanned around a pixel, in tie-breaking order
+     */
+    private static final Direction[] SCAN_DIRECTIONS = {Direction.UP, Direction.RIGHT, Direction.DOWN, Direction.LEFT};
+
+    private static final int SCAN_UP = 0;
+
+    private static final int SCAN_RIGHT = 1;
+
+    private static final int SCAN_DOWN = 2;
+
+    private static final int SCAN_LEFT = 3;
+
+    private static final int[] SCAN_DX = {0, 1, 0, -1};
+
+    private static final int[] SCAN_DY = {-1, 0, 1, 0};
+
+    /**
+     * Run-lengths written by calculateNeighboursLengths, indexed like SCAN_DIRECTIONS
+     */
+    private final int[] neighbourLengths = new int[4];
+
     Compressor(Image image)
+    {
+        this(image, chooseBackground(image));
+    }
+
+    /**
+     * Compresses the image over the given background instead of its own most present color,
+     * so that several compressors can share one background
+     *
+     * @param image      The Image to compress
+     * @param background The background color, which need not be in the image
+     */
+    Compressor(Image image, int background)
     {
         this.image = image;
 
         int h = image.getHeight();
         int w = image.getWidth();
 
-        // Determine backgroundColor
-        HashMap<Integer, Integer> colorsCount = new HashMap<>();
-        for (int[] row : image.getPixels()) {
-            for (int p : row) {
-                int pixelCount = 0;
-                if (colorsCount.containsKey(p)) {
-                    pixelCount = colorsCount.get(p);
-                }
-                pixelCount++;
-                colorsCount.put(p, pixelCount);
+        // Extract individual colors ordered by importance, the lowest first on ties
+        int[] counts = image.countColours();
+        colors = new ArrayList<>();
+        for (int color = 0; color < 16; color++) {
+            if (counts[color] > 0) {
+                colors.add(color);
             }
         }
+        colors.sort((c1, c2) -> Integer.compare(counts[c2], counts[c1]));
 
-        // Extract individual colors ordered by importance
-        colors = colorsCount.entrySet().stream()
-                .sorted((c1, c2) -> Integer.compare(c2.getValue(), c1.getValue()))
-                .map(Map.Entry::getKey)
-                .collect(Collectors.toList());
+        // The background is drawn first
+        colors.remove((Integer) background);
+        colors.add(0, background);
 
-        // Takes most present color
-        int background = Collections.max(colorsCount.entrySet(), Map.Entry.comparingByValue()).getKey();
         this.drawing = new Drawing(h, w, background);
-        this.drawnCoordinates = new HashSet<>();
-        this.drawnColors = new HashSet<>();
+        this.drawnCoordinates = new PixelSet(w, h);
+        this.drawnColors = new boolean[16];
+        this.undrawn = new UndrawnIndex(w);
+
+        for (int y = 0; y < h; y++) {
+            for (int x = 0; x < w; x++) {
+                int p = image.get(x, y);
+                if (p != background) {
+                    undrawn.add(x, p);
+                }
+            }
+        }
+
         this.nextColor();
     }
 
+    /**
+     * Copies the state of another compressor, so that both can go on separately
+     *
+     * @param other The Compressor
+     */
+    Compressor(Compressor other)
+    {
+        this.image = other.image;
+        this.drawing = new Drawing(other.drawing);
+        this.drawnCoordinates = new PixelSet(other.drawnCoordinates);
+        this.drawnColors = other.drawnColors.clone();
+        this.undrawn = new UndrawnIndex(other.undrawn);
+        this.cursor = other.cursor.clone();
+        this.colors = new ArrayList<>(other.colors);
+        this.currentColorIndex = other.currentColorIndex;
+    }
+
+    /**
+     * Takes the most present color, the lowest one on ties
+     *
+     * @param image The Image
+     * @return The background color
+     */
+    static int chooseBackground(Image image)
+    {
+        int[] counts = image.countColours();
+
+        int background = 0;
+        for (int color = 1; color < 16; color++) {
+            if (counts[color] > counts[background]) {
+                background = color;
+            }
+        }
+
+        return background;
+    }
+
     /**
      * Runs the compression
-     * `i` prevents infinite loops
+     * <p>
+     * Every step paints, moves the cursor or takes the next color. A step doing none of them
+     * would be taken again forever, and none of the pixels can need more steps than the colors
+     * drawn over it give it chances to be painted, so going past either means the drawing can
+     * not be finished.
      *
      * @return The Drawing
+     * @throws IllegalStateException If the compression stops making progress
      */
     public Drawing compress()
     {
-        int limit = 10000;
-        int i = 0;
-        while (!isDone() && i < limit) {
+        long limit = 3L * 16 * image.getHeight() * image.getWidth() + 32;
+        long i = 0;
+        while (!isDone()) {
+            int commands = drawing.commands.size();
+            int colorIndex = currentColorIndex;
+
             computeNextCommand();
             i++;
-        }
 
-        if (i == limit) {
-            System.err.println("/!\\ EXIT BECAUSE OF PRESUMED INFINITE LOOP /!\\");
+            if (i > limit || (drawing.commands.size() == commands && currentColorIndex == colorIndex && !isDone())) {
+                throw new IllegalStateException("Compression stopped making progress after " + i + " steps, "
+                        + undrawn.total() + " pixels left");
+            }
         }
 
         return drawing;
@@ -284,7 +577,7 @@ public class Compressor
      */
     public void nextColor()
     {
-        drawnColors.add(colors.get(currentColorIndex));
+        drawnColors[colors.get(currentColorIndex)] = true;
 
         if (currentColorIndex + 1 < colors.size()) {
             currentColorIndex++;
@@ -298,46 +591,45 @@ public class Compressor
      */
     public boolean cleanDrawnCoordinates()
     {
-        return !drawnCoordinates.removeIf(c -> !drawnColors.contains(image.get(c)) && image.get(c) != getCurrentColor());
-    }
+        return !drawnCoordinates.removeIf((x, y) -> {
+            int color = image.get(x, y);
 
-    /**
-     * @param color Color to test
-     * @return Is color fully drawn
-     */
-    public boolean allColorDrawn(int color)
-    {
-        boolean allDrawn = true;
+            if (drawnColors[color] || color == getCurrentColor()) {
+                return false;
+            }
 
-        for (Coordinate c : getDrawableCoordinates()) {
-            if (image.get(c) == color) {
-                if (!drawnCoordinates.contains(c)) {
-                    allDrawn = false;
-                }
+            if (color != drawing.background) {
+                undrawn.add(x, color);
             }
-        }
 
-        return allDrawn;
+            return true;
+        });
     }
 
     /**
-     * Compute coordinates not being part of the background
+     * Record a painted pixel and keep the undrawn counters in sync
      *
-     * @return The not drawn coordinates
+     * @param x The x coordinate
+     * @param y The y coordinate
      */
-    private Set<Coordinate> getDrawableCoordinates()
+    private void markDrawn(int x, int y)
     {
-        HashSet<Coordinate> drawableCoordinates = new HashSet<>();
-        for (int x = 0; x < image.getWidth(); x++) {
-            for (int y = 0; y < image.getHeight(); y++) {
-                int c = image.get(x, y);
-                if (c != drawing.background) {
-                    drawableCoordinates.add(new Coordinate(x, y));
-                }
+        if (drawnCoordinates.add(x, y)) {
+            int color = image.get(x, y);
+
+            if (color != drawing.background) {
+                undrawn.remove(x, color);
             }
         }
+    }
 
-        return drawableCoordinates;
+    /**
+     * @param color Color to test
+     * @return Is color fully drawn
+     */
+    public boolean allColorDrawn(int color)
+    {
+        return color == drawing.background || undrawn.count(color) == 0;
     }
 
     /**
@@ -345,7 +637,7 @@ public class Compressor
      */
     protected void computeNextCommand()
     {
-        DirectionLength dl = this.getBestDirectionLength(cursor, 1);
+        DirectionLength dl = this.getBestDirectionLength(cursor.x, cursor.y, 1);
 
         if (null == dl) {
             boolean result = this.computeNearestStandalone();
@@ -366,64 +658,152 @@ public class Compressor
     }
 
     /**
-     * @return Is the image fully drawn
+     * The lines computeNextCommand could paint from the cursor, the one it paints first
+     *
+     * @return The lines, empty if it would move the cursor or change color instead
      */
-    private boolean isDone()
+    List<DirectionLength> getPaintChoices()
     {
-        return drawnCoordinates.containsAll(getDrawableCoordinates());
+        int[] neighbours = calculateNeighboursLengths(cursor.x, cursor.y, 1);
+
+        List<DirectionLength> choices = new ArrayList<>();
+        for (int d = 0; d < neighbours.length; d++) {
+            if (neighbours[d] > 0) {
+                choices.add(new DirectionLength(SCAN_DIRECTIONS[d], neighbours[d]));
+            }
+        }
+
+        // Longest first; the sort is stable, so ties stay in the order getBestDirectionLength breaks them
+        choices.sort((c1, c2) -> Integer.compare(c2.length, c1.length));
+
+        return choices;
     }
 
     /**
-     * Compute commands for moving to the "lest expensive" next location
+     * Paint one of the getPaintChoices instead of letting computeNextCommand choose
      *
-     * @return Whether if it moved successfully or not
+     * @param dl The line
      */
-    private boolean computeNearestStandalone()
+    void paint(DirectionLength dl)
     {
-        Set<Coordinate> standaloneCoordinates = this.getDrawableCoordinates();
-        standaloneCoordinates.removeAll(drawnCoordinates);
+        addCommand(dl.direction, dl.length, true, getCurrentColor());
 
-        // Used to store an InlinePixels, a target Coordinate and its cost
-        class InlinePixelsTargetCost
-        {
-            InlinePixels ip;
+        if (isDone()) {
+            cleanDrawnCoordinates();
+        }
+    }
 
-            Coordinate target;
+    /**
+     * The locations computeNextCommand could move the cursor to for drawing the current color,
+     * the one it moves to first, then the others near the cursor from the cheapest
+     *
+     * @param limit The most locations to return
+     * @return The locations, empty if it would paint or change color instead
+     */
+    List<Coordinate> getMoveChoices(int limit)
+    {
+        List<Coordinate> choices = new ArrayList<>();
 
-            int cost;
+        if (null != getBestDirectionLength(cursor.x, cursor.y, 1)) {
+            return choices;
+        }
 
-            public InlinePixelsTargetCost(InlinePixels ip, Coordinate target, int cost)
-            {
-                this.ip = ip;
-                this.target = target;
-                this.cost = cost;
+        Coordinate first = findNearestTarget();
+
+        if (null == first) {
+            return choices;
+        }
+
+        choices.add(first);
+
+        // findNearestTarget leaves the pixels near the cursor in candidates
+        int height = image.getHeight();
+        List<Coordinate> others = new ArrayList<>();
+        for (int i = 0; i < candidatesCount; i++) {
+            if (i > 0 && candidates[i] == candidates[i - 1]) {
+                continue;
+            }
+
+            Coordinate target = computeTarget(candidates[i] / height, candidates[i] % height, getCurrentColor());
+
+            if (null != target && !first.equals(target) && !others.contains(target)) {
+                others.add(target);
             }
         }
 
-        List<InlinePixelsTargetCost> targetScores = new ArrayList<>();
-        for (Coordinate c : standaloneCoordinates) {
-            if (image.get(c) == getCurrentColor()) {
-                InlinePixels ip = this.computeBestInlinePixels(c);
+        others.sort(Comparator.comparingInt(this::getCostGoTo));
+        choices.addAll(others.subList(0, Math.min(limit - 1, others.size())));
 
-                if (ip.contains(image, getCurrentColor())) {
-                    Coordinate target = computeBestLocationForDrawing(ip);
+        return choices;
+    }
 
-                    int cost = getCostGoTo(target);
+    /**
+     * The colors computeNextCommand could go on with once the current one is drawn, the one it
+     * takes first
+     *
+     * @return The colors, empty if it would paint or move the cursor instead
+     */
+    List<Integer> getColorChoices()
+    {
+        if (!allColorDrawn(getCurrentColor()) || null != getBestDirectionLength(cursor.x, cursor.y, 1)) {
+            return new ArrayList<>();
+        }
 
-                    InlinePixelsTargetCost iptc = new InlinePixelsTargetCost(ip, target, cost);
+        return new ArrayList<>(colors.subList(currentColorIndex + 1, colors.size()));
+    }
 
-                    targetScores.add(iptc);
-                }
-            }
+    /**
+     * Go on with one of the getColorChoices instead of letting computeNextCommand choose
+     *
+     * @param color The color
+     */
+    void nextColor(int color)
+    {
+        colors.remove((Integer) color);
+        colors.add(currentColorIndex + 1, color);
+
+        cleanDrawnCoordinates();
+        nextColor();
+
+        if (isDone()) {
+            cleanDrawnCoordinates();
         }
+    }
+
+    /**
+     * @return Is the image fully drawn
+     */
+    boolean isDone()
+    {
+        return undrawn.total() == 0;
+    }
 
-        if (targetScores.size() == 0) {
+    /**
+     * Compute commands for moving to the "lest expensive" next location
+     *
+     * @return Whether if it moved successfully or not
+     */
+    private boolean computeNearestStandalone()
+    {
+        Coordinate target = findNearestTarget();
+
+        if (null == target) {
             return false;
         }
 
-        Comparator<InlinePixelsTargetCost> cmp = (o1, o2) -> Integer.valueOf(o2.cost).compareTo(o1.cost);
-        Coordinate target = Collections.max(targetScores, cmp).target;
+        moveTo(target);
 
+        return true;
+    }
+
+    /**
+     * Move the cursor to the coordinate, horizontally then vertically. Used with one of the
+     * getMoveChoices instead of letting computeNextCommand choose.
+     *
+     * @param target The coordinate
+     */
+    void moveTo(Coordinate target)
+    {
         int distanceX = target.x - cursor.x;
         int distanceY = target.y - cursor.y;
 
@@ -434,8 +814,198 @@ public class Compressor
         if (distanceY != 0) {
             this.addCommand(distanceY < 0 ? Direction.UP : Direction.DOWN, Math.abs(distanceY), false, 0);
         }
+    }
 
-        return true;
+    /**
+     * Find the cheapest location to start drawing an undrawn pixel of the current color from.
+     * Among equally cheap locations, the one for the first pixel in column-major order wins.
+     * <p>
+     * A location costs less than 2 only if it is on the cursor row or column. It sits next to
+     * the end of a line going through the pixel, so the line reaches one of the rows or columns
+     * around the cursor. Only pixels connected to those bands are scored; if none of them costs
+     * less than 2, every pixel costs 2 and the first one wins.
+     *
+     * @return The location, or null if there is nothing left to draw in the current color
+     */
+    private Coordinate findNearestTarget()
+    {
+        int color = getCurrentColor();
+
+        if (allColorDrawn(color)) {
+            return null;
+        }
+
+        int width = image.getWidth();
+        int height = image.getHeight();
+
+        candidatesCount = 0;
+        for (int band = -1; band <= 1; band++) {
+            int bx = cursor.x + band;
+            int by = cursor.y + band;
+
+            if (bx >= 0 && bx < width) {
+                for (int y = 0; y < height; y++) {
+                    addCandidate(bx, y, color);
+                }
+            }
+
+            if (by >= 0 && by < height) {
+                for (int x = 0; x < width; x++) {
+                    addCandidate(x, by, color);
+                }
+            }
+        }
+
+        for (int y = 0; y < height; y++) {
+            addStretchCandidates(cursor.x - 1, y, SCAN_RIGHT, SCAN_LEFT, color);
+            addStretchCandidates(cursor.x + 1, y, SCAN_RIGHT, SCAN_LEFT, color);
+        }
+
+        for (int x = 0; x < width; x++) {
+            addStretchCandidates(x, cursor.y - 1, SCAN_DOWN, SCAN_UP, color);
+            addStretchCandidates(x, cursor.y + 1, SCAN_DOWN, SCAN_UP, color);
+        }
+
+        Arrays.sort(candidates, 0, candidatesCount);
+
+        Coordinate best = null;
+        int bestCost = Integer.MAX_VALUE;
+        for (int i = 0; i < candidatesCount; i++) {
+            if (i > 0 && candidates[i] == candidates[i - 1]) {
+                continue;
+            }
+
+            Coordinate target = computeTarget(candidates[i] / height, candidates[i] % height, color);
+
+            if (null != target && getCostGoTo(target) < bestCost) {
+                best = target;
+                bestCost = getCostGoTo(target);
+            }
+        }
+
+        if (bestCost < 2) {
+            return best;
+        }
+
+        for (int x = 0; x < width; x++) {
+            if (undrawn.count(color, x) == 0) {
+                continue;
+            }
+
+            for (int y = 0; y < height; y++) {
+                if (image.get(x, y) == color && !drawnCoordinates.contains(x, y)) {
+                    Coordinate target = computeTarget(x, y, color);
+
+                    if (null != target) {
+                        return target;
+                    }
+                }
+            }
+        }
+
+        return null;
+    }
+
+    /**
+     * @param x     The x coordinate of an undrawn pixel
+     * @param y     The y coordinate of an undrawn pixel
+     * @param color The current color
+     * @return The best location for drawing the line going through the pixel, null if none
+     */
+    private Coordinate computeTarget(int x, int y, int color)
+    {
+        InlinePixels ip = this.computeBestInlinePixels(new Coordinate(x, y));
+
+        if (!ip.contains(image, color)) {
+            return null;
+        }
+
+        return computeBestLocationForDrawing(ip);
+    }
+
+    /**
+     * Queue the pixel for findNearestTarget if it is an undrawn pixel of the color
+     *
+     * @param x     The x coordinate
+     * @param y     The y coordinate
+     * @param color The color
+     */
+    private void addCandidate(int x, int y, int color)
+    {
+        if (image.get(x, y) != color || drawnCoordinates.contains(x, y)) {
+            return;
+        }
+
+        if (candidatesCount == candidates.length) {
+            candidates = Arrays.copyOf(candidates, candidatesCount * 2);
+        }
+
+        candidates[candidatesCount++] = x * image.getHeight() + y;
+    }
+
+    /**
+     * Queue the undrawn pixels of the color on the stretch of pixels a line going through
+     * (x, y) could cover, see calculateDirectionLength
+     *
+     * @param x        The x coordinate
+     * @param y        The y coordinate
+     * @param forward  The SCAN_DIRECTIONS index of one way along the line
+     * @param backward The SCAN_DIRECTIONS index of the other way
+     * @param color    The color
+     */
+    private void addStretchCandidates(int x, int y, int forward, int backward, int color)
+    {
+        if (!isWalkable(x, y, color)) {
+            return;
+        }
+
+        addWalkCandidates(x, y, forward, color);
+        addWalkCandidates(x + SCAN_DX[backward], y + SCAN_DY[backward], backward, color);
+    }
+
+    /**
+     * Queue the undrawn pixels of the color from (x, y) included, going in one direction
+     * for as long as a line of the color may go, one run of the Image at a time
+     *
+     * @param x     The x coordinate
+     * @param y     The y coordinate
+     * @param d     The SCAN_DIRECTIONS index
+     * @param color The color
+     */
+    private void addWalkCandidates(int x, int y, int d, int color)
+    {
+        int dx = SCAN_DX[d];
+        int dy = SCAN_DY[d];
+
+        while (isWalkable(x, y, color)) {
+            int steps = getRunSteps(x, y, d);
+
+            if (image.get(x, y) == color) {
+                for (int k = 0; k < steps; k++) {
+                    addCandidate(x + dx * k, y + dy * k, color);
+                }
+            }
+
+            x += dx * steps;
+            y += dy * steps;
+        }
+    }
+
+    /**
+     * @param x     The x coordinate
+     * @param y     The y coordinate
+     * @param color The current color
+     * @return Whether a line of the current color may go over the pixel
+     */
+    private boolean isWalkable(int x, int y, int color)
+    {
+        if (x < 0 || x >= image.getWidth() || y < 0 || y >= image.getHeight()) {
+            return false;
+        }
+
+        int c = image.get(x, y);
+
+        return c != drawing.background && (c == color || !drawnColors[c]);
     }
 
     /**
@@ -467,12 +1037,12 @@ public class Compressor
      */
     private InlinePixels computeBestInlinePixels(Coordinate coordinate)
     {
-        Map<Direction, Integer> neighbours = calculateNeighboursLengths(coordinate, 1);
+        int[] neighbours = calculateNeighboursLengths(coordinate.x, coordinate.y, 1);
 
-        int lengthUp = neighbours.get(Direction.UP);
-        int lengthDown = neighbours.get(Direction.DOWN);
-        int lengthLeft = neighbours.get(Direction.LEFT);
-        int lengthRight = neighbours.get(Direction.RIGHT);
+        int lengthUp = neighbours[SCAN_UP];
+        int lengthDown = neighbours[SCAN_DOWN];
+        int lengthLeft = neighbours[SCAN_LEFT];
+        int lengthRight = neighbours[SCAN_RIGHT];
 
         int horizontalLength = lengthLeft + lengthRight;
         int verticalLength = lengthUp + lengthDown;
@@ -598,13 +1168,7 @@ public class Compressor
      */
     protected void addCommand(Direction direction, int distance, boolean paint, int color)
     {
-        StringBuilder sb = new StringBuilder(direction.toString() + " " + distance);
-
-        if (paint) {
-            sb.append(" " + Integer.toString(color, 16));
-        }
-
-        drawing.addCommand(new DrawingCommand(sb.toString()));
+        drawing.addCommand(direction, distance, paint, color);
 
         boolean forward = isForward(direction);
         int incr = getIncr(direction);
@@ -614,7 +1178,7 @@ public class Compressor
         if (direction.getOrientation() == Orientation.VERTICAL) {
             if (paint) {
                 for (int py = cursor.y; forward ? (py < cursor.y + relativeDistance) : (py > cursor.y + relativeDistance); py += incr) {
-                    drawnCoordinates.add(new Coordinate(cursor.x, py + incr));
+                    markDrawn(cursor.x, py + incr);
                 }
             }
 
@@ -622,7 +1186,7 @@ public class Compressor
         } else if (direction.getOrientation() == Orientation.HORIZONTAL) {
             if (paint) {
                 for (int px = cursor.x; forward ? (px < cursor.x + relativeDistance) : (px > cursor.x + relativeDistance); px += incr) {
-                    drawnCoordinates.add(new Coordinate(px + incr, cursor.y));
+                    markDrawn(px + incr, cursor.y);
                 }
             }
 
@@ -631,108 +1195,107 @@ public class Compressor
     }
 
     /**
-     * @param coordinate The Coordinate
-     * @param offset     The offset
+     * @param x      The x coordinate
+     * @param y      The y coordinate
+     * @param offset The offset
      * @return The best DirectionLength for the coordinate
      */
-    private DirectionLength getBestDirectionLength(Coordinate coordinate, int offset)
+    private DirectionLength getBestDirectionLength(int x, int y, int offset)
     {
-        Map<Direction, Integer> neighbours = calculateNeighboursLengths(coordinate, offset);
+        int[] neighbours = calculateNeighboursLengths(x, y, offset);
 
-        boolean allImpossible = true;
-        for (Map.Entry<Direction, Integer> entry : neighbours.entrySet()) {
-            if (entry.getValue() > 0) {
-                allImpossible = false;
+        int best = 0;
+        for (int d = 1; d < neighbours.length; d++) {
+            if (neighbours[d] > neighbours[best]) {
+                best = d;
             }
         }
 
-        if (allImpossible) {
+        if (neighbours[best] == 0) {
             return null;
         }
 
-        Map.Entry<Direction, Integer> pair = Collections.max(neighbours.entrySet(), Map.Entry.comparingByValue());
-
-        return new DirectionLength(pair.getKey(), pair.getValue());
+        return new DirectionLength(SCAN_DIRECTIONS[best], neighbours[best]);
     }
 
     /**
-     * Get neighbours run-length for Coordinate
+     * Get neighbours run-length for a pixel
+     * The returned array is reused by the next call
      *
-     * @param coordinate The Coordinate
-     * @param offset     The offset
-     * @return A Map of Direction / length
+     * @param x      The x coordinate
+     * @param y      The y coordinate
+     * @param offset The offset
+     * @return The lengths, indexed like SCAN_DIRECTIONS
      */
-    private Map<Direction, Integer> calculateNeighboursLengths(Coordinate coordinate, int offset)
+    private int[] calculateNeighboursLengths(int x, int y, int offset)
     {
-        HashMap<Direction, Integer> directions = new HashMap<>();
-
-        directions.put(Direction.UP, this.calculateDirectionLength(coordinate, Direction.UP, offset));
-        directions.put(Direction.RIGHT, this.calculateDirectionLength(coordinate, Direction.RIGHT, offset));
-        directions.put(Direction.DOWN, this.calculateDirectionLength(coordinate, Direction.DOWN, offset));
-        directions.put(Direction.LEFT, this.calculateDirectionLength(coordinate, Direction.LEFT, offset));
+        for (int d = 0; d < SCAN_DIRECTIONS.length; d++) {
+            neighbourLengths[d] = calculateDirectionLength(x, y, d, offset);
+        }
 
-        return directions;
+        return neighbourLengths;
     }
 
     /**
-     * @param coordinate The Coordinate
-     * @param direction  The Direction
-     * @param offset     The offset
-     * @return run-length of Direction for Coordinate
+     * @param x The x coordinate
+     * @param y The y coordinate
+     * @param d The SCAN_DIRECTIONS index
+     * @return Number of pixels from (x, y) included to the end of its run in the direction
      */
-    private int calculateDirectionLength(Coordinate coordinate, Direction direction, int offset)
+    private int getRunSteps(int x, int y, int d)
     {
-        int x = coordinate.x;
-        int y = coordinate.y;
+        int end = image.getRunEnd(x, y, SCAN_DIRECTIONS[d]);
 
-        int incr = getIncr(direction);
+        return SCAN_DX[d] != 0 ? Math.abs(end - x) + 1 : Math.abs(end - y) + 1;
+    }
 
-        int i = -1;
-        int color;
-        boolean containsCurrentColor = false;
-        boolean containsUndrawn = false;
-        while (true) {
-            i++;
+    /**
+     * Walk from the pixel until the image edge, the background or an already drawn color,
+     * one run of the Image at a time
+     *
+     * @param x      The x coordinate
+     * @param y      The y coordinate
+     * @param d      The SCAN_DIRECTIONS index
+     * @param offset The offset
+     * @return run-length in the direction, 0 if it paints no undrawn pixel of the current color
+     */
+    private int calculateDirectionLength(int x, int y, int d, int offset)
+    {
+        int width = image.getWidth();
+        int height = image.getHeight();
+        int background = drawing.background;
+        int currentColor = getCurrentColor();
+        int dx = SCAN_DX[d];
+        int dy = SCAN_DY[d];
 
-            Coordinate newC;
-            if (direction.getOrientation() == Orientation.VERTICAL) {
-                int newY = y + (incr * (i + offset));
-                newC = new Coordinate(x, newY);
-            } else if (direction.getOrientation() == Orientation.HORIZONTAL) {
-                int newX = x + (incr * (i + offset));
-                newC = new Coordinate(newX, y);
-            } else {
-                System.err.println("Unhandled Orientation");
-                break;
-            }
+        int px = x + dx * offset;
+        int py = y + dy * offset;
 
-            try {
-                color = image.get(newC);
-            } catch (ArrayIndexOutOfBoundsException e) {
-                break;
-            }
+        int length = 0;
+        boolean containsUndrawn = false;
+        while (px >= 0 && px < width && py >= 0 && py < height) {
+            int color = image.get(px, py);
 
-            if (color == drawing.background) {
+            if (color == background || (color != currentColor && drawnColors[color])) {
                 break;
             }
 
-            if (getCurrentColor() == color) {
-                containsCurrentColor = true;
+            int steps = getRunSteps(px, py, d);
 
-                if (!drawnCoordinates.contains(newC)) {
-                    containsUndrawn = true;
-                }
-            } else {
-                if (drawnColors.contains(color)) {
-                    break;
+            if (color == currentColor && !containsUndrawn) {
+                for (int k = 0; k < steps; k++) {
+                    if (!drawnCoordinates.contains(px + dx * k, py + dy * k)) {
+                        containsUndrawn = true;
+                        break;
+                    }
                 }
             }
-        }
 
-        if (!containsCurrentColor || !containsUndrawn) {
-            return 0;
+            length += steps;
+            px += dx * steps;
+            py += dy * steps;
         }
 
-        return i;
+        return containsUndrawn ? length : 0;
     }
 }
@@ -6,7 +6,6 @@ import java.awt.*;
 import java.awt.event.MouseEvent;
 import java.awt.event.MouseListener;
 import java.awt.event.MouseMotionAdapter;
-import java.util.Objects;
 
 class PixelCellRenderer extends DefaultTableCellRenderer
 {
@@ -350,7 +349,7 @@ public class CompressorDebugger extends Compressor
     {
         boolean result = false;
         try {
-            result = Objects.equals(image.toString(), drawing.draw().toString());
+            result = image.contentEquals(drawing.draw());
         } catch (BadCommand badCommand) {
             badCommand.printStackTrace();
         }
@@ -384,9 +383,8 @@ public class CompressorDebugger extends Compressor
         if (false) {
             for (int y = 0; y < imageRows; y++) {
                 for (int x = 0; x < imageColumns; x++) {
-                    Coordinate c = new Coordinate(x, y);
                     Integer v = null;
-                    if (drawnCoordinates.contains(c)) {
+                    if (drawnCoordinates.contains(x, y)) {
                         v = image.get(x, y);
                     }
 
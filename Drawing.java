@@ -1,8 +1,13 @@
-import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.FileInputStream;
 import java.io.FileNotFoundException;
-import java.io.FileReader;
+import java.io.FileOutputStream;
 import java.io.IOException;
-import java.util.ArrayList;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
 
 enum Orientation
 {
@@ -48,6 +53,18 @@ enum Direction
 
         return null;
     }
+
+    // How x changes for each space moved in this direction
+    public int getDeltaX()
+    {
+        return this == LEFT ? -1 : this == RIGHT ? 1 : 0;
+    }
+
+    // How y changes for each space moved in this direction
+    public int getDeltaY()
+    {
+        return this == UP ? -1 : this == DOWN ? 1 : 0;
+    }
 }
 
 // A single drawing command. Which direction to go in, how far to move, and
@@ -69,49 +86,37 @@ class DrawingCommand
     // left 10 3
     // up 1
     // up 2 target
+    // Errors are thrown unchecked; use parse(s) to get them as a BadFormat.
     public DrawingCommand(String s)
     {
-        // Split the string by whitespace
-        String[] elems = s.split("\\s");
-
-        if (elems.length != 3 && elems.length != 2) {
-            System.out.println("Bad command (should have 2 or 3 parts): " + s);
-            System.exit(1);
+        try {
+            byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+            DrawingParser.parseCommand(bytes, 0, bytes.length, this);
+        } catch (BadFormat e) {
+            throw new IllegalArgumentException(e.getMessage(), e);
         }
+    }
 
-        if (elems[0].equals("up"))
-            dir = Direction.UP;
-        else if (elems[0].equals("down"))
-            dir = Direction.DOWN;
-        else if (elems[0].equals("left"))
-            dir = Direction.LEFT;
-        else if (elems[0].equals("right"))
-            dir = Direction.RIGHT;
-        else {
-            System.out.println("Bad direction (should be up, down, left, or right): " + elems[0]);
-            System.exit(1);
-        }
+    // Read in a Drawing command from a string, like DrawingCommand(s)
+    public static DrawingCommand parse(String s) throws BadFormat
+    {
+        DrawingCommand c = new DrawingCommand();
+        byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+        DrawingParser.parseCommand(bytes, 0, bytes.length, c);
+        return c;
+    }
 
-        try {
-            distance = Integer.parseInt(elems[1]);
-        } catch (NumberFormatException e) {
-            System.out.println("Bad length (should be a number): " + elems[1]);
-            System.exit(1);
-        }
-        // Check for the optional colour
-        if (elems.length == 2)
-            paint = false;
-        else {
-            paint = true;
-            try {
-                colour = Integer.parseInt(elems[2], 16);
-                if (colour < 0 || colour > 15)
-                    throw new NumberFormatException();
-            } catch (NumberFormatException e) {
-                System.out.println("Bad colour (should be a hex number betweeen 0 and f): " + elems[2]);
-                System.exit(1);
-            }
-        }
+    public DrawingCommand(Direction dir, int distance, boolean paint, int colour)
+    {
+        this.dir = dir;
+        this.distance = distance;
+        this.paint = paint;
+        this.colour = paint ? colour : 0;
+    }
+
+    // An empty command, to be filled in by DrawingParser
+    DrawingCommand()
+    {
     }
 
     public String toString()
@@ -128,6 +133,16 @@ class BadCommand extends Exception
     }
 }
 
+// Thrown when an image, a drawing or a command is not in its format. The
+// message is the one the command line tools print before exiting.
+class BadFormat extends Exception
+{
+    public BadFormat(String message)
+    {
+        super(message);
+    }
+}
+
 // Represent a picture as the height and width, and a sequence of drawing
 // commands to build it. Also has an initial background colour. Each command
 // starts at the current location and draws a certain number of spaces to get
@@ -175,51 +190,60 @@ public class Drawing
 
     public int background;
 
-    ArrayList<DrawingCommand> commands;
+    CommandBuffer commands;
 
-    // Read in an ArrayList of drawing commands from a file. There should be
+    // Read in a list of drawing commands from a file. There should be
     // exactly 1 command per line. The first two lines should be 2 numbers for
     // the height and width rather than commands. The third line is the
-    // background colour.
+    // background colour. Errors are thrown unchecked; use read(filename) to
+    // get them as a BadFormat or an IOException.
     public Drawing(String filename)
     {
-        commands = new ArrayList<DrawingCommand>();
-        try {
-            BufferedReader in = new BufferedReader(new FileReader(filename));
-            String s = in.readLine();
-            try {
-                height = Integer.parseInt(s);
-            } catch (NumberFormatException e) {
-                System.out.println("Expected the height on the first line: " + s);
-                System.exit(1);
-            }
-
-            s = in.readLine();
-            try {
-                width = Integer.parseInt(s);
-            } catch (NumberFormatException e) {
-                System.out.println("Expected the width on the second line: " + s);
-                System.exit(1);
-            }
+        commands = new CommandBuffer();
+        try (InputStream in = new FileInputStream(filename)) {
+            load(in);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        } catch (BadFormat e) {
+            throw new IllegalArgumentException(e.getMessage(), e);
+        }
+    }
 
-            s = in.readLine();
-            try {
-                background = Integer.parseInt(s, 16);
-            } catch (NumberFormatException e) {
-                System.out.println("Expected the background colour on the third line: " + s);
-                System.exit(1);
-            }
+    // An empty drawing, to be loaded
+    private Drawing()
+    {
+        commands = new CommandBuffer();
+    }
 
-            for (s = in.readLine(); s != null; s = in.readLine())
-                commands.add(new DrawingCommand(s));
-        } catch (FileNotFoundException e) {
-            System.out.println("File not found: " + filename);
-            System.exit(1);
-        } catch (IOException e) {
-            System.exit(2);
+    // Read in a list of drawing commands from a file, like Drawing(filename)
+    public static Drawing read(String filename) throws IOException, BadFormat
+    {
+        try (InputStream in = new FileInputStream(filename)) {
+            return read(in);
         }
     }
 
+    // Read in a list of drawing commands from the rest of a stream, in the
+    // same format as a file
+    public static Drawing read(InputStream in) throws IOException, BadFormat
+    {
+        Drawing d = new Drawing();
+        d.load(in);
+        return d;
+    }
+
+    private void load(InputStream in) throws IOException, BadFormat
+    {
+        DrawingParser parser = new DrawingParser(in);
+        height = parser.nextHeader(10, "Expected the height on the first line");
+        width = parser.nextHeader(10, "Expected the width on the second line");
+        background = parser.nextColour("Expected the background colour on the third line");
+
+        DrawingCommand c = new DrawingCommand();
+        while (parser.nextCommand(c))
+            commands.add(c);
+    }
+
     // create an empty drawing of the given dimensions
     public Drawing(int h, int w, int b)
     {
@@ -227,7 +251,16 @@ public class Drawing
         width = w;
         assert (b >= 0 && b <= 15);
         background = b;
-        commands = new ArrayList<DrawingCommand>();
+        commands = new CommandBuffer();
+    }
+
+    // A copy of another drawing, which can then be added to separately
+    Drawing(Drawing other)
+    {
+        height = other.height;
+        width = other.width;
+        background = other.background;
+        commands = new CommandBuffer(other.commands);
     }
 
     public void addCommand(DrawingCommand c)
@@ -235,16 +268,153 @@ public class Drawing
         commands.add(c);
     }
 
+    public void addCommand(Direction dir, int distance, boolean paint, int colour)
+    {
+        commands.add(dir, distance, paint, colour);
+    }
+
     public String toString()
     {
-        StringBuilder s = new StringBuilder();
-        s.append(height + "\n");
-        s.append(width + "\n");
-        s.append(Integer.toHexString(background) + "\n");
-        for (DrawingCommand command : commands) {
-            s.append(command.toString() + "\n");
+        ByteArrayOutputStream out = new ByteArrayOutputStream(16 + 12 * commands.size());
+        try {
+            write(out);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return new String(out.toByteArray(), StandardCharsets.US_ASCII);
+    }
+
+    // The names of the directions, by ordinal
+    private static final byte[][] DIRECTION_NAMES = new byte[Direction.values().length][];
+
+    static {
+        for (Direction d : Direction.values())
+            DIRECTION_NAMES[d.ordinal()] = d.toString().getBytes(StandardCharsets.US_ASCII);
+    }
+
+    // A command takes at most "right", a space, an int, a space, a colour
+    // and a newline
+    static final int LONGEST_COMMAND = 5 + 1 + 11 + 1 + 1 + 1;
+
+    // Write the same text as toString() into the stream, a chunk of commands
+    // at a time
+    public void write(OutputStream out) throws IOException
+    {
+        String header = height + "\n" + width + "\n" + Integer.toHexString(background) + "\n";
+        out.write(header.getBytes(StandardCharsets.US_ASCII));
+
+        byte[] chunk = new byte[1 << 16];
+        int n = 0;
+        for (int k = 0; k < commands.size(); k++) {
+            if (n > chunk.length - LONGEST_COMMAND) {
+                out.write(chunk, 0, n);
+                n = 0;
+            }
+
+            byte code = commands.getCode(k);
+            byte[] name = DIRECTION_NAMES[(code >>> 5) & 0x3];
+            System.arraycopy(name, 0, chunk, n, name.length);
+            n += name.length;
+            chunk[n++] = ' ';
+            n = putInt(chunk, n, commands.getDistance(k));
+            chunk[n++] = ' ';
+            if (commands.isPaint(k))
+                chunk[n++] = Image.HEX_DIGITS[code & 0xF];
+            chunk[n++] = '\n';
+        }
+        out.write(chunk, 0, n);
+    }
+
+    // Put the decimal digits of the value in b from n, and return where they
+    // end
+    private static int putInt(byte[] b, int n, int value)
+    {
+        long v = value;
+        if (v < 0) {
+            b[n++] = '-';
+            v = -v;
+        }
+
+        int digits = 1;
+        for (long p = 10; p <= v; p *= 10)
+            digits++;
+
+        for (int i = n + digits - 1; i >= n; i--) {
+            b[i] = (byte) ('0' + v % 10);
+            v /= 10;
+        }
+        return n + digits;
+    }
+
+    // Write the drawing in the binary format of BinaryDrawing
+    public void writeBinary(OutputStream out) throws IOException
+    {
+        BinaryDrawing.write(this, out);
+    }
+
+    // Read a drawing written by writeBinary
+    public static Drawing readBinary(InputStream in) throws IOException, BadFormat
+    {
+        return BinaryDrawing.read(in);
+    }
+
+    // Save the drawing in the binary format with the given filename and a
+    // .drawb extension.
+    public void toBinary(String filename) throws IOException
+    {
+        try (OutputStream out = new FileOutputStream(filename + ".drawb")) {
+            writeBinary(out);
+        }
+    }
+
+    // Read in a drawing saved by toBinary. A file that is cut short is a
+    // BadFormat too.
+    public static Drawing readBinary(String filename) throws IOException, BadFormat
+    {
+        try (InputStream in = new FileInputStream(filename)) {
+            return readBinary(in);
+        } catch (EOFException | BadFormat e) {
+            throw new BadFormat("Bad binary drawing: " + filename + ": " + e.getMessage());
+        }
+    }
+
+    // Write the drawing in the range coded format of DrawingArchive
+    public void writeArchive(OutputStream out) throws IOException
+    {
+        DrawingArchive.write(this, out);
+    }
+
+    // Read a drawing written by writeArchive
+    public static Drawing readArchive(InputStream in) throws IOException, BadFormat
+    {
+        return DrawingArchive.read(in, Integer.MAX_VALUE);
+    }
+
+    // Read a drawing written by writeArchive, which is a BadFormat if it
+    // says it has more than maxCommands commands
+    public static Drawing readArchive(InputStream in, int maxCommands) throws IOException, BadFormat
+    {
+        return DrawingArchive.read(in, maxCommands);
+    }
+
+    // Save the drawing in the archive format with the given filename and a
+    // .drawz extension.
+    public void toArchive(String filename) throws IOException
+    {
+        try (OutputStream out = new FileOutputStream(filename + ".drawz")) {
+            writeArchive(out);
+        }
+    }
+
+    // Read in a drawing saved by toArchive. A file that is cut short is a
+    // BadFormat too.
+    public static Drawing readArchive(String filename) throws IOException, BadFormat
+    {
+        try (InputStream in = new FileInputStream(filename)) {
+            return readArchive(in);
+        } catch (EOFException | BadFormat e) {
+            throw new BadFormat("Bad drawing archive: " + filename + ": " + e.getMessage());
         }
-        return s.toString();
     }
 
     // Task 1: Implement the draw method to create and return an image by
@@ -254,78 +424,142 @@ public class Drawing
     // It is ok for the position to leave the dimensions, as long it no attempt
     // is made to paint outside of the picture.
     // (5 marks)
-    @SuppressWarnings("Duplicates")
+    //
+    // The cursor lives in locals, and each command is bounds-checked once and
+    // then painted as a single span, see paintCommand.
     public Image draw() throws BadCommand
     {
         Image i = new Image(height, width, background);
 
-        Coordinate cursor = new Coordinate(0, 0);
-        Coordinate newCursor = cursor.clone();
-
-        for (DrawingCommand command : commands) {
-            Direction dir = command.dir;
-            int d = command.distance;
-            int c = command.colour;
-
-            if (dir == Direction.UP) {
-                newCursor.y -= d;
-            } else if (dir == Direction.DOWN) {
-                newCursor.y += d;
-            } else if (dir == Direction.LEFT) {
-                newCursor.x -= d;
-            } else if (dir == Direction.RIGHT) {
-                newCursor.x += d;
-            }
+        int x = 0;
+        int y = 0;
 
-            if (0 == d) {
-                if (command.paint) {
-                    i.set(newCursor.x, newCursor.y, c);
-                }
-            } else if (dir == Direction.UP || dir == Direction.DOWN) {
-                boolean forward = dir == Direction.DOWN;
-
-                if (command.paint) {
-                    if (forward) {
-                        for (int p = cursor.y; p < newCursor.y; p++) {
-                            i.set(newCursor.x, p + 1, c);
-                        }
-                    } else {
-                        for (int p = cursor.y; p > newCursor.y; p--) {
-                            i.set(newCursor.x, p - 1, c);
-                        }
-                    }
-                }
-            } else if (dir == Direction.LEFT || dir == Direction.RIGHT) {
-                boolean forward = dir == Direction.RIGHT;
-
-                if (command.paint) {
-                    if (forward) {
-                        for (int p = cursor.x; p < newCursor.x; p++) {
-                            i.set(p + 1, newCursor.y, c);
-                        }
-                    } else {
-                        for (int p = cursor.x; p > newCursor.x; p--) {
-                            i.set(p - 1, newCursor.y, c);
-                        }
-                    }
-                }
-            }
+        for (int k = 0; k < commands.size(); k++) {
+            Direction dir = commands.getDirection(k);
+            int d = commands.getDistance(k);
 
-            cursor = newCursor.clone();
+            if (commands.isPaint(k))
+                paintCommand(i, x, y, dir, d, commands.getColour(k));
+
+            x += dir.getDeltaX() * d;
+            y += dir.getDeltaY() * d;
         }
 
         return i;
     }
 
+    // Read a drawing from a file and execute each command as soon as it is
+    // parsed, the same way as draw(), without keeping the commands. Only the
+    // cursor and the image are held in memory, so this works for command
+    // logs of any length. Unlike new Drawing(filename).draw(), a BadCommand
+    // is thrown as soon as it is reached, even if a later line is malformed.
+    public static Image replay(String filename) throws IOException, BadFormat, BadCommand
+    {
+        Image i;
+        try (InputStream in = new FileInputStream(filename)) {
+            DrawingParser parser = new DrawingParser(in);
+            int height = parser.nextHeader(10, "Expected the height on the first line");
+            int width = parser.nextHeader(10, "Expected the width on the second line");
+            int background = parser.nextColour("Expected the background colour on the third line");
+            i = new Image(height, width, background);
+
+            int x = 0;
+            int y = 0;
+
+            DrawingCommand c = new DrawingCommand();
+            while (parser.nextCommand(c)) {
+                if (c.paint)
+                    paintCommand(i, x, y, c.dir, c.distance, c.colour);
+
+                x += c.dir.getDeltaX() * c.distance;
+                y += c.dir.getDeltaY() * c.distance;
+            }
+        }
+
+        return i;
+    }
+
+    // Paint the spaces covered by a command going from (x, y), not including
+    // (x, y) itself unless the distance is 0. If any of them is outside the
+    // image, throw a BadCommand for the first one the command would reach,
+    // without painting anything. A negative distance paints nothing.
+    static void paintCommand(Image i, int x, int y, Direction dir, int d, int c) throws BadCommand
+    {
+        if (0 == d) {
+            i.set(x, y, c);
+            return;
+        }
+
+        boolean vertical = dir == Direction.UP || dir == Direction.DOWN;
+        boolean forward = dir == Direction.DOWN || dir == Direction.RIGHT;
+
+        // The spaces are painted from first to last along the line
+        int start = vertical ? y : x;
+        int first = forward ? start + 1 : start - 1;
+        int last = forward ? start + d : start - d;
+        if (forward ? last < first : last > first)
+            return;
+
+        int low = Math.min(first, last);
+        int high = Math.max(first, last);
+        int size = vertical ? i.getHeight() : i.getWidth();
+        int across = vertical ? x : y;
+        int acrossSize = vertical ? i.getWidth() : i.getHeight();
+
+        if (across < 0 || across >= acrossSize)
+            throw outside(vertical, x, y, first);
+
+        if (low < 0 || high >= size) {
+            if (forward)
+                throw outside(vertical, x, y, low < 0 ? low : Math.max(low, size));
+            else
+                throw outside(vertical, x, y, high >= size ? high : Math.min(high, -1));
+        }
+
+        if (vertical)
+            i.fillColumn(x, low, high, c);
+        else
+            i.fillRow(y, low, high, c);
+    }
+
+    private static BadCommand outside(boolean vertical, int x, int y, int position)
+    {
+        return vertical ? new BadCommand(x, position) : new BadCommand(position, y);
+    }
+
     public static void main(String[] args)
     {
         // A simple test to read in an file of drawing commands and print it out.
-        Drawing d = new Drawing(args[0]);
-
+        // With --stream, the commands are executed while the file is read.
+        // Files ending in .drawb are read in the binary format, and files
+        // ending in .drawz in the archive format.
+        String filename = args[0].equals("--stream") ? args[1] : args[0];
         try {
-            System.out.println(d.draw().toString());
+            Image i;
+            if (args[0].equals("--stream")) {
+                i = replay(args[1]);
+            } else {
+                Drawing d;
+                if (args[0].endsWith(".drawb"))
+                    d = readBinary(args[0]);
+                else if (args[0].endsWith(".drawz"))
+                    d = readArchive(args[0]);
+                else
+                    d = read(args[0]);
+                i = d.draw();
+            }
+            i.write(System.out);
+            System.out.println();
         } catch (BadCommand e) {
             System.err.println(e);
+        } catch (FileNotFoundException e) {
+            System.out.println("File not found: " + filename);
+            System.exit(1);
+        } catch (BadFormat e) {
+            System.out.println(e.getMessage());
+            System.exit(1);
+        } catch (IOException e) {
+            System.exit(2);
         }
     }
 }
@@ -0,0 +1,382 @@
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+
+// Reads and writes the .drawz archive form of a Drawing, the smallest one:
+//
+//   "DRWZ"                 4 bytes, to recognise the format
+//   height, width          unsigned LEB128 each
+//   background             1 byte
+//   method                 1 byte: CODED or STORED
+//   if CODED:
+//     number of commands   unsigned LEB128
+//     then the commands, range coded
+//   if STORED:
+//     the commands as in BinaryDrawing, until the end of the stream
+//
+// The commands are stored when range coding would not make them smaller,
+// which happens for a few dozen commands or fewer, as the models start out
+// knowing nothing. Otherwise each field of a command is coded with its own
+// adaptive model, in context:
+//
+//   direction              2 bits, given the previous direction
+//   paint                  1 bit, given the direction and the previous paint
+//   colour                 4 bits if painting, given the previous colour
+//   distance               its bit length (0 to 32) given the orientation,
+//                          then the bits below the leading 1, each with its
+//                          own probability per bit length and position
+//
+// Compressor output repeats colours, alternates directions and keeps
+// distances in a narrow range, which these models pick up quickly.
+class DrawingArchive
+{
+
+    static final byte[] MAGIC = {'D', 'R', 'W', 'Z'};
+
+    static final int CODED = 0;
+
+    static final int STORED = 1;
+
+    private final short[] directionProbs = RangeCoder.newProbs(4 << 2);
+
+    private final short[] paintProbs = RangeCoder.newProbs(4 << 1);
+
+    private final short[] colourProbs = RangeCoder.newProbs(16 << 4);
+
+    private final short[] lengthProbs = RangeCoder.newProbs(2 << 6);
+
+    private final short[] bitProbs = RangeCoder.newProbs(33 << 5);
+
+    private int previousDirection = 0;
+
+    private int previousPaint = 0;
+
+    private int previousColour = 0;
+
+    static void write(Drawing d, OutputStream out) throws IOException
+    {
+        byte[] chunk = new byte[1 << 16];
+        int n = 0;
+
+        for (byte b : MAGIC)
+            chunk[n++] = b;
+        n = BinaryDrawing.putVarint(chunk, n, d.height);
+        n = BinaryDrawing.putVarint(chunk, n, d.width);
+        chunk[n++] = (byte) d.background;
+
+        // Range code the commands first, to see whether that saves anything
+        ByteArrayOutputStream coded = new ByteArrayOutputStream();
+        byte[] count = new byte[5];
+        coded.write(count, 0, BinaryDrawing.putVarint(count, 0, d.commands.size()));
+
+        DrawingArchive model = new DrawingArchive();
+        RangeEncoder encoder = new RangeEncoder(coded);
+        CommandBuffer commands = d.commands;
+        for (int k = 0; k < commands.size(); k++)
+            model.encode(encoder, commands.getCode(k), commands.getDistance(k));
+        encoder.flush();
+
+        if (coded.size() < BinaryDrawing.commandsSize(commands)) {
+            chunk[n++] = CODED;
+            out.write(chunk, 0, n);
+            coded.writeTo(out);
+            out.flush();
+        } else {
+            chunk[n++] = STORED;
+            BinaryDrawing.writeCommands(commands, chunk, n, out);
+        }
+    }
+
+    // Read an archive of at most maxCommands commands, which are checked
+    // before any is decoded when they are range coded. Stored ones take 2
+    // bytes each at least, so the input bounds their number.
+    static Drawing read(InputStream in, int maxCommands) throws IOException, BadFormat
+    {
+        for (byte b : MAGIC) {
+            if (nextByte(in) != b)
+                throw new BadFormat("Not a drawing archive");
+        }
+
+        int height = nextVarint(in);
+        int width = nextVarint(in);
+        if (height < 0 || width < 0)
+            throw new BadFormat("Bad size: " + height + "x" + width);
+
+        int background = nextByte(in);
+        if (background > 15)
+            throw new BadFormat("Bad background colour: " + background);
+
+        Drawing d = new Drawing(height, width, background);
+
+        int method = nextByte(in);
+        if (method == STORED) {
+            BinaryDrawing.readCommands(in, d.commands);
+            return d;
+        }
+        if (method != CODED)
+            throw new BadFormat("Bad method: " + method);
+
+        int size = nextVarint(in);
+        if (size < 0)
+            throw new BadFormat("Bad number of commands: " + size);
+        if (size > maxCommands)
+            throw new BadFormat("Too many commands: " + size + ", at most " + maxCommands);
+
+        // The number of commands only bounds how many are decoded. It does
+        // not size the buffer, which grows with the commands decoded instead:
+        // those run out with the input, as each takes a fraction of a byte.
+        d.commands = new CommandBuffer(Math.min(size, 1 << 16));
+
+        DrawingArchive model = new DrawingArchive();
+        RangeDecoder decoder = new RangeDecoder(in);
+        for (int k = 0; k < size; k++)
+            model.decode(decoder, d.commands);
+
+        return d;
+    }
+
+    // The header is read a byte at a time, so that nothing past it is taken
+    // from the stream before the commands are
+    private static int nextByte(InputStream in) throws IOException
+    {
+        int b = in.read();
+        if (b < 0)
+            throw new EOFException("Truncated drawing archive");
+        return b;
+    }
+
+    private static int nextVarint(InputStream in) throws IOException, BadFormat
+    {
+        int value = 0;
+        for (int shift = 0; shift < 35; shift += 7) {
+            int b = nextByte(in);
+            value |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0)
+                return value;
+        }
+
+        throw new BadFormat("Number longer than 5 bytes");
+    }
+
+    private void encode(RangeEncoder encoder, byte code, int distance) throws IOException
+    {
+        int direction = (code >>> 5) & 0x3;
+        int paint = (code >>> 4) & 0x1;
+        int colour = code & 0xF;
+
+        encoder.encodeTree(directionProbs, previousDirection << 2, 2, direction);
+        encoder.encodeBit(paintProbs, direction << 1 | previousPaint, paint);
+        if (paint == 1) {
+            encoder.encodeTree(colourProbs, previousColour << 4, 4, colour);
+            previousColour = colour;
+        }
+
+        int length = 32 - Integer.numberOfLeadingZeros(distance);
+        encoder.encodeTree(lengthProbs, (direction >>> 1) << 6, 6, length);
+        for (int bit = length - 2; bit >= 0; bit--)
+            encoder.encodeBit(bitProbs, length << 5 | bit, (distance >>> bit) & 1);
+
+        previousDirection = direction;
+        previousPaint = paint;
+    }
+
+    private void decode(RangeDecoder decoder, CommandBuffer commands) throws IOException, BadFormat
+    {
+        int direction = decoder.decodeTree(directionProbs, previousDirection << 2, 2);
+        int paint = decoder.decodeBit(paintProbs, direction << 1 | previousPaint);
+        int colour = 0;
+        if (paint == 1) {
+            colour = decoder.decodeTree(colourProbs, previousColour << 4, 4);
+            previousColour = colour;
+        }
+
+        int length = decoder.decodeTree(lengthProbs, (direction >>> 1) << 6, 6);
+        if (length > 32)
+            throw new BadFormat("Bad distance length: " + length);
+
+        int distance = length == 0 ? 0 : 1;
+        for (int bit = length - 2; bit >= 0; bit--)
+            distance = distance << 1 | decoder.decodeBit(bitProbs, length << 5 | bit);
+
+        commands.addCode((byte) (direction << 5 | paint << 4 | colour), distance);
+
+        previousDirection = direction;
+        previousPaint = paint;
+    }
+}
+
+// Constants and helpers shared by the range encoder and decoder. This is the
+// binary adaptive range coder of LZMA: each probability is an 11-bit estimate
+// that the next bit is 0, moved 1/32 of the way towards each bit seen.
+class RangeCoder
+{
+
+    static final int PROB_BITS = 11;
+
+    static final int PROB_ONE = 1 << PROB_BITS;
+
+    static final int MOVE_BITS = 5;
+
+    static short[] newProbs(int size)
+    {
+        short[] probs = new short[size];
+        Arrays.fill(probs, (short) (PROB_ONE >>> 1));
+        return probs;
+    }
+}
+
+class RangeEncoder
+{
+
+    private final OutputStream out;
+
+    private final byte[] buffer = new byte[1 << 16];
+
+    private int position = 0;
+
+    private long low = 0;
+
+    private int range = -1;
+
+    private int cache = 0;
+
+    private long cacheSize = 1;
+
+    RangeEncoder(OutputStream out)
+    {
+        this.out = out;
+    }
+
+    void encodeBit(short[] probs, int index, int bit) throws IOException
+    {
+        int prob = probs[index];
+        int bound = (range >>> RangeCoder.PROB_BITS) * prob;
+        if (bit == 0) {
+            range = bound;
+            probs[index] = (short) (prob + ((RangeCoder.PROB_ONE - prob) >>> RangeCoder.MOVE_BITS));
+        } else {
+            low += bound & 0xFFFFFFFFL;
+            range -= bound;
+            probs[index] = (short) (prob - (prob >>> RangeCoder.MOVE_BITS));
+        }
+
+        if ((range & 0xFF000000) == 0) {
+            range <<= 8;
+            shiftLow();
+        }
+    }
+
+    // Code the low bits of a symbol, most significant first, with the
+    // probabilities at base + 1 to base + 2^bits - 1 as a binary tree
+    void encodeTree(short[] probs, int base, int bits, int symbol) throws IOException
+    {
+        int node = 1;
+        for (int i = bits - 1; i >= 0; i--) {
+            int bit = (symbol >>> i) & 1;
+            encodeBit(probs, base + node, bit);
+            node = node << 1 | bit;
+        }
+    }
+
+    void flush() throws IOException
+    {
+        for (int i = 0; i < 5; i++)
+            shiftLow();
+        out.write(buffer, 0, position);
+        position = 0;
+    }
+
+    private void shiftLow() throws IOException
+    {
+        int carry = (int) (low >>> 32);
+        if (carry != 0 || low < 0xFF000000L) {
+            int temp = cache;
+            do {
+                put(temp + carry);
+                temp = 0xFF;
+            } while (--cacheSize != 0);
+            cache = ((int) low) >>> 24;
+        }
+        cacheSize++;
+        low = (low & 0xFFFFFF) << 8;
+    }
+
+    private void put(int b) throws IOException
+    {
+        if (position == buffer.length) {
+            out.write(buffer, 0, position);
+            position = 0;
+        }
+        buffer[position++] = (byte) b;
+    }
+}
+
+class RangeDecoder
+{
+
+    private final InputStream in;
+
+    private final byte[] buffer = new byte[1 << 16];
+
+    private int position = 0;
+
+    private int limit = 0;
+
+    private int range = -1;
+
+    private int code = 0;
+
+    RangeDecoder(InputStream in) throws IOException
+    {
+        this.in = in;
+        for (int i = 0; i < 5; i++)
+            code = code << 8 | next();
+    }
+
+    int decodeBit(short[] probs, int index) throws IOException
+    {
+        int prob = probs[index];
+        int bound = (range >>> RangeCoder.PROB_BITS) * prob;
+        int bit;
+        if ((code ^ 0x80000000) < (bound ^ 0x80000000)) {
+            range = bound;
+            probs[index] = (short) (prob + ((RangeCoder.PROB_ONE - prob) >>> RangeCoder.MOVE_BITS));
+            bit = 0;
+        } else {
+            range -= bound;
+            code -= bound;
+            probs[index] = (short) (prob - (prob >>> RangeCoder.MOVE_BITS));
+            bit = 1;
+        }
+
+        if ((range & 0xFF000000) == 0) {
+            code = code << 8 | next();
+            range <<= 8;
+        }
+
+        return bit;
+    }
+
+    int decodeTree(short[] probs, int base, int bits) throws IOException
+    {
+        int node = 1;
+        for (int i = 0; i < bits; i++)
+            node = node << 1 | decodeBit(probs, base + node);
+        return node - (1 << bits);
+    }
+
+    private int next() throws IOException
+    {
+        if (position == limit) {
+            limit = in.read(buffer, 0, buffer.length);
+            position = 0;
+            if (limit <= 0)
+                throw new EOFException("Truncated drawing archive");
+        }
+
+        return buffer[position++] & 0xFF;
+    }
+}
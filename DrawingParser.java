@@ -0,0 +1,271 @@
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+
+// Reads the text format of a Drawing straight from the bytes of a stream:
+// the height, width and background lines, then one command per line. Lines
+// are found in a byte buffer and commands are parsed in place, so no String
+// is built unless a line turns out to be invalid.
+//
+// The rules are the same as splitting each line with s.split("\\s") and
+// parsing the parts with Integer.parseInt, which is what DrawingCommand(String)
+// used to do.
+class DrawingParser
+{
+
+    private final InputStream in;
+
+    private byte[] buffer;
+
+    // Bytes [position, limit) of the buffer are read but not consumed yet
+    private int position = 0;
+
+    private int limit = 0;
+
+    // The last line ended with '\r', so a '\n' right after it belongs to it
+    private boolean skipLF = false;
+
+    // Bounds of the current line in the buffer, line terminator excluded
+    private int lineStart;
+
+    private int lineEnd;
+
+    DrawingParser(InputStream in)
+    {
+        this(in, new byte[1 << 16], 0);
+    }
+
+    // Parse bytes [0, length) of data, without a stream behind them
+    DrawingParser(byte[] data, int length)
+    {
+        this(null, data, length);
+    }
+
+    private DrawingParser(InputStream in, byte[] buffer, int limit)
+    {
+        this.in = in;
+        this.buffer = buffer;
+        this.limit = limit;
+    }
+
+    // Read the next line of a header, and parse it as a whole as a number
+    // in the given radix. Throws a BadFormat "expected: line" if that fails.
+    int nextHeader(int radix, String expected) throws IOException, BadFormat
+    {
+        if (!nextLine())
+            throw new BadFormat(expected + ": null");
+
+        long value = parseInt(buffer, lineStart, lineEnd, radix);
+        if (value == INVALID)
+            throw new BadFormat(expected + ": " + text(buffer, lineStart, lineEnd));
+
+        return (int) value;
+    }
+
+    // Read the next line of a header as a single hex colour, 0 to f. Throws
+    // a BadFormat "expected: line" otherwise.
+    int nextColour(String expected) throws IOException, BadFormat
+    {
+        int colour = nextHeader(16, expected);
+        if (colour < 0 || colour > 15)
+            throw new BadFormat(expected + ": " + text(buffer, lineStart, lineEnd));
+
+        return colour;
+    }
+
+    // Read the next line as a command into c. Returns false at the end of
+    // the input.
+    boolean nextCommand(DrawingCommand c) throws IOException, BadFormat
+    {
+        if (!nextLine())
+            return false;
+
+        parseCommand(buffer, lineStart, lineEnd, c);
+        return true;
+    }
+
+    // Parse bytes [start, end) as a single command into c. Throws a
+    // BadFormat if it is not a valid command.
+    static void parseCommand(byte[] b, int start, int lineEnd, DrawingCommand c) throws BadFormat
+    {
+        // Trailing whitespace would only make empty parts, which split drops
+        int end = lineEnd;
+        while (end > start && isSpace(b[end - 1]))
+            end--;
+
+        // Split the line by whitespace: find the ends of the first two parts
+        int parts = start == end ? 0 : 1;
+        int first = end;
+        int second = end;
+        for (int i = start; i < end; i++) {
+            if (isSpace(b[i])) {
+                if (parts == 1)
+                    first = i;
+                else if (parts == 2)
+                    second = i;
+                parts++;
+            }
+        }
+
+        if (parts != 3 && parts != 2)
+            throw new BadFormat("Bad command (should have 2 or 3 parts): " + text(b, start, lineEnd));
+
+        c.dir = parseDirection(b, start, first);
+        if (c.dir == null)
+            throw new BadFormat("Bad direction (should be up, down, left, or right): " + text(b, start, first));
+
+        long distance = parseInt(b, first + 1, second, 10);
+        if (distance == INVALID)
+            throw new BadFormat("Bad length (should be a number): " + text(b, first + 1, second));
+        c.distance = (int) distance;
+
+        // Check for the optional colour
+        if (parts == 2) {
+            c.paint = false;
+            c.colour = 0;
+        } else {
+            long colour = parseInt(b, second + 1, end, 16);
+            if (colour < 0 || colour > 15)
+                throw new BadFormat("Bad colour (should be a hex number betweeen 0 and f): " + text(b, second + 1, end));
+            c.paint = true;
+            c.colour = (int) colour;
+        }
+    }
+
+    private static boolean isSpace(byte b)
+    {
+        return b == ' ' || b == '\t' || b == '\n' || b == 0x0B || b == '\f' || b == '\r';
+    }
+
+    private static Direction parseDirection(byte[] b, int start, int end)
+    {
+        switch (end - start) {
+            case 2:
+                return b[start] == 'u' && b[start + 1] == 'p' ? Direction.UP : null;
+            case 4:
+                if (b[start] == 'd' && b[start + 1] == 'o' && b[start + 2] == 'w' && b[start + 3] == 'n')
+                    return Direction.DOWN;
+                if (b[start] == 'l' && b[start + 1] == 'e' && b[start + 2] == 'f' && b[start + 3] == 't')
+                    return Direction.LEFT;
+                return null;
+            case 5:
+                if (b[start] == 'r' && b[start + 1] == 'i' && b[start + 2] == 'g' && b[start + 3] == 'h' && b[start + 4] == 't')
+                    return Direction.RIGHT;
+                return null;
+            default:
+                return null;
+        }
+    }
+
+    // Returned by parseInt when Integer.parseInt would throw
+    static final long INVALID = Long.MIN_VALUE;
+
+    // Same as Integer.parseInt on bytes [start, end) as ASCII
+    static long parseInt(byte[] b, int start, int end, int radix)
+    {
+        boolean negative = false;
+        if (start < end && (b[start] == '-' || b[start] == '+')) {
+            negative = b[start] == '-';
+            start++;
+        }
+
+        if (start == end)
+            return INVALID;
+
+        long value = 0;
+        for (int i = start; i < end; i++) {
+            int digit = Character.digit(b[i] & 0xFF, radix);
+            if (digit < 0 || b[i] < 0)
+                return INVALID;
+
+            value = value * radix + digit;
+            if (value > (long) Integer.MAX_VALUE + 1)
+                return INVALID;
+        }
+
+        if (negative)
+            value = -value;
+
+        if (value > Integer.MAX_VALUE || value < Integer.MIN_VALUE)
+            return INVALID;
+
+        return value;
+    }
+
+    private static String text(byte[] b, int start, int end)
+    {
+        return new String(b, start, end - start, StandardCharsets.UTF_8);
+    }
+
+    // Move to the next line, ended by "\n", "\r" or "\r\n" like
+    // BufferedReader.readLine. Returns false at the end of the input.
+    private boolean nextLine() throws IOException
+    {
+        int scan = position;
+        while (true) {
+            if (skipLF) {
+                if (position < limit) {
+                    if (buffer[position] == '\n')
+                        position++;
+                    skipLF = false;
+                    scan = position;
+                } else if (!fill()) {
+                    return false;
+                }
+                continue;
+            }
+
+            for (; scan < limit; scan++) {
+                byte b = buffer[scan];
+                if (b == '\n' || b == '\r') {
+                    lineStart = position;
+                    lineEnd = scan;
+                    position = scan + 1;
+                    skipLF = b == '\r';
+                    return true;
+                }
+            }
+
+            int scanned = scan - position;
+            if (!fill()) {
+                if (position == limit)
+                    return false;
+
+                // The last line has no terminator
+                lineStart = position;
+                lineEnd = limit;
+                position = limit;
+                return true;
+            }
+            scan = position + scanned;
+        }
+    }
+
+    // Move the unconsumed bytes to the start of the buffer, growing it if
+    // they fill it, and read more after them. Returns false at the end of
+    // the stream.
+    private boolean fill() throws IOException
+    {
+        if (in == null)
+            return false;
+
+        if (position > 0) {
+            System.arraycopy(buffer, position, buffer, 0, limit - position);
+            limit -= position;
+            position = 0;
+        }
+
+        if (limit == buffer.length) {
+            byte[] bigger = new byte[buffer.length * 2];
+            System.arraycopy(buffer, 0, bigger, 0, limit);
+            buffer = bigger;
+        }
+
+        int n = in.read(buffer, limit, buffer.length - limit);
+        if (n < 0)
+            return false;
+
+        limit += n;
+        return true;
+    }
+}
@@ -1,95 +1,294 @@
 import javax.imageio.ImageIO;
 import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferByte;
+import java.awt.image.IndexColorModel;
+import java.awt.image.MultiPixelPackedSampleModel;
 import java.io.*;
-import java.util.ArrayList;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
 
 // This class represents a simple rectangular image, where each pixel can be
 // one of 16 colours.
 public class Image
 {
 
-    // Store a 2 dimensional image with "colours" as numbers between 0 and 15
-    private int pixels[][] = new int[0][0];
+    // Store a 2 dimensional image with "colours" as numbers between 0 and 15.
+    // Pixels are packed 16 to a long, 4 bits each, with pixel x of a row in
+    // bits 4 * (x % 16) of word x / 16. Every row starts on a new word and the
+    // unused bits at the end of a row are always 0.
+    private int height;
+
+    private int width;
+
+    private int wordsPerRow;
+
+    private long[] words = new long[0];
+
+    // Run boundaries, built on demand by buildRuns() and dropped by set(),
+    // one bit per pixel for each direction. Row y takes breaksPerRow words
+    // of rowBreaks from y * breaksPerRow, with bit x % 64 of its word x / 64
+    // set when (x, y) is the last pixel of its horizontal run of the same
+    // colour. columnBreaks holds the same for the vertical runs, column by
+    // column. rowColours/columnColours hold a bit mask of the colours in
+    // each row and column.
+    private long[] rowBreaks;
+
+    private int breaksPerRow;
+
+    private long[] columnBreaks;
+
+    private int breaksPerColumn;
+
+    private int[] rowColours;
+
+    private int[] columnColours;
 
     // Read in an image from a file. Each line of the file must be the same
-    // length, and only contain single digit hex numbers 0-9 and a-f.
+    // length, and only contain single digit hex numbers 0-9 and a-f. The file
+    // is memory-mapped and decoded straight into the pixels. Errors are
+    // thrown unchecked; use read(filename) to get them as a BadFormat or an
+    // IOException.
     public Image(String filename)
     {
-
-        // Read the whole file into lines
-        ArrayList<String> lines = new ArrayList<String>();
         try {
-            BufferedReader in = new BufferedReader(new FileReader(filename));
-            for (String s = in.readLine(); s != null; s = in.readLine())
-                lines.add(s);
-        } catch (FileNotFoundException e) {
-            System.out.println("File not found: " + filename);
-            System.exit(1);
+            ImageDecoder.decodeFile(filename, this);
         } catch (IOException e) {
-            System.exit(2);
+            throw new UncheckedIOException(e);
+        } catch (BadFormat e) {
+            throw new IllegalArgumentException(e.getMessage(), e);
         }
+    }
 
-        if (lines.size() == 0) {
-            System.out.println("Empty file: " + filename);
-            System.exit(1);
+    // An image with no pixels yet, to be decoded into
+    private Image()
+    {
+    }
+
+    // Read in an image from a file, like Image(filename)
+    public static Image read(String filename) throws IOException, BadFormat
+    {
+        Image i = new Image();
+        ImageDecoder.decodeFile(filename, i);
+        return i;
+    }
+
+    // Read in an image from the rest of a stream, in the same format as a
+    // file
+    public static Image read(InputStream in) throws IOException, BadFormat
+    {
+        ByteArrayOutputStream data = new ByteArrayOutputStream();
+        byte[] chunk = new byte[1 << 16];
+        for (int n = in.read(chunk); n >= 0; n = in.read(chunk))
+            data.write(chunk, 0, n);
+
+        return read(ByteBuffer.wrap(data.toByteArray()), "Empty image");
+    }
+
+    // Decode an image from bytes in the format of a file. Throws a BadFormat
+    // with the message given if there are none.
+    static Image read(ByteBuffer data, String empty) throws BadFormat
+    {
+        Image i = new Image();
+        ImageDecoder.decode(data, empty, i);
+        return i;
+    }
+
+    // Decode an image from the lines a decoder has found
+    static Image read(ImageDecoder decoder) throws BadFormat
+    {
+        Image i = new Image();
+        decoder.decodeInto(i);
+        return i;
+    }
+
+    // Create a solid image with given dimensions and colour
+    public Image(int height, int width, int colour)
+    {
+        if (colour < 0 || colour > 15)
+            throw new IllegalArgumentException("Bad colour: " + colour);
+
+        allocate(height, width);
+
+        long pattern = colour * 0x1111111111111111L;
+        for (int i = 0; i < height; i++) {
+            int row = i * wordsPerRow;
+            for (int k = 0; k < wordsPerRow; k++)
+                words[row + k] = pattern;
+            if (wordsPerRow > 0)
+                words[row + wordsPerRow - 1] &= lastWordMask();
         }
+    }
 
-        // Initialise the array based on the number of lines and the length of the
-        // first one.
-        int length = lines.get(0).length();
-        pixels = new int[lines.size()][length];
+    // Size the image, with every pixel set to 0
+    void allocate(int height, int width)
+    {
+        this.height = height;
+        this.width = width;
+        wordsPerRow = (width + 15) >>> 4;
+        words = new long[height * wordsPerRow];
+    }
 
-        for (int i = 0; i < lines.size(); i++) {
-            // Check that all of the lines have the same length as the first one.
-            if (length != lines.get(i).length()) {
-                System.out.println("Inconsistent line lengths: " + length + " and " + lines.get(i).length() + " on lines 1 and " + (i + 1));
-                System.exit(1);
-            }
+    // Get 16 pixels of row y at once, starting from x = 16 * k, with pixel x
+    // in bits 4 * (x % 16). The bits past the end of the row are 0.
+    long getWord(int y, int k)
+    {
+        return words[y * wordsPerRow + k];
+    }
 
-            // Copy each line into the array
-            for (int j = 0; j < length; j++) {
-                pixels[i][j] = Character.getNumericValue(lines.get(i).charAt(j));
-                if (pixels[i][j] < 0 || pixels[i][j] > 15) {
-                    System.out.println("Invalid contents: " + lines.get(i).charAt(j) + " on line " + (i + 1));
-                    System.exit(1);
-                }
+    // Count the pixels of each colour, a word at a time
+    int[] countColours()
+    {
+        int[] counts = new int[16];
+        int last = width & 15;
+        for (int k = 0; k < words.length; k++) {
+            long word = words[k];
+            int pixels = last != 0 && k % wordsPerRow == wordsPerRow - 1 ? last : 16;
+            for (int j = 0; j < pixels; j++, word >>>= 4)
+                counts[(int) word & 0xF]++;
+        }
+        return counts;
+    }
+
+    // Replace 16 pixels of row y at once, starting from x = 16 * k. Used by
+    // ImageDecoder; the unused bits past the end of the row must be 0.
+    void setWord(int y, int k, long word)
+    {
+        words[y * wordsPerRow + k] = word;
+        columnBreaks = null;
+    }
+
+    // Paint pixels from x = from to x = to included in row y with the colour.
+    // The caller checks that they are all inside the image.
+    void fillRow(int y, int from, int to, int colour)
+    {
+        long pattern = (colour & 0xF) * 0x1111111111111111L;
+        int first = y * wordsPerRow + (from >>> 4);
+        int last = y * wordsPerRow + (to >>> 4);
+        long firstMask = -1L << ((from & 15) << 2);
+        long lastMask = -1L >>> ((15 - (to & 15)) << 2);
+
+        if (first == last) {
+            long mask = firstMask & lastMask;
+            words[first] = (words[first] & ~mask) | (pattern & mask);
+        } else {
+            words[first] = (words[first] & ~firstMask) | (pattern & firstMask);
+            Arrays.fill(words, first + 1, last, pattern);
+            words[last] = (words[last] & ~lastMask) | (pattern & lastMask);
+        }
+
+        columnBreaks = null;
+    }
+
+    // Paint pixels from y = from to y = to included in column x with the
+    // colour. The caller checks that they are all inside the image.
+    void fillColumn(int x, int from, int to, int colour)
+    {
+        int shift = (x & 15) << 2;
+        long mask = 0xFL << shift;
+        long bits = (long) (colour & 0xF) << shift;
+
+        int index = from * wordsPerRow + (x >>> 4);
+        for (int i = from; i <= to; i++, index += wordsPerRow)
+            words[index] = (words[index] & ~mask) | bits;
+
+        columnBreaks = null;
+    }
+
+    // Copy the rectangle of the given height and width with its top left
+    // corner at (x, y) into a new image. The caller checks that it is all
+    // inside this image.
+    Image tile(int x, int y, int height, int width)
+    {
+        Image t = new Image(height, width, 0);
+        int shift = (x & 15) << 2;
+
+        for (int i = 0; i < height; i++) {
+            int rowEnd = (y + i + 1) * wordsPerRow;
+            int src = (y + i) * wordsPerRow + (x >>> 4);
+            int dst = i * t.wordsPerRow;
+            for (int k = 0; k < t.wordsPerRow; k++) {
+                long word = words[src + k] >>> shift;
+                if (shift != 0 && src + k + 1 < rowEnd)
+                    word |= words[src + k + 1] << (64 - shift);
+                t.words[dst + k] = word;
             }
+            if (t.wordsPerRow > 0)
+                t.words[dst + t.wordsPerRow - 1] &= t.lastWordMask();
         }
+
+        return t;
     }
 
-    // Create a solid image with given dimensions and colour
-    public Image(int height, int width, int colour)
+    // Bits of the last word of a row that hold pixels
+    private long lastWordMask()
     {
-        pixels = new int[height][width];
-        for (int i = 0; i < height; i++)
-            for (int j = 0; j < width; j++)
-                pixels[i][j] = colour;
+        int used = width & 15;
+        return used == 0 ? -1L : (1L << (used << 2)) - 1;
     }
 
+    // The ASCII hex digit of each colour
+    static final byte[] HEX_DIGITS = "0123456789abcdef".getBytes(StandardCharsets.US_ASCII);
+
     // Get back the original text-based representation
     public String toString()
     {
-        StringBuilder s = new StringBuilder(pixels.length * pixels[0].length);
-        for (int i = 0; i < pixels.length; i++) {
-            for (int j = 0; j < pixels[i].length; j++)
-                s.append(Integer.toHexString(pixels[i][j]));
-            s.append("\n");
+        byte[] b = new byte[height * (width + 1)];
+        int n = 0;
+        for (int i = 0; i < height; i++)
+            n = encodeRow(i, b, n);
+        return new String(b, StandardCharsets.US_ASCII);
+    }
+
+    // Write the same text as toString() into the stream, a chunk of rows at
+    // a time
+    public void write(OutputStream out) throws IOException
+    {
+        byte[] chunk = new byte[Math.max(1 << 16, width + 1)];
+        int n = 0;
+        for (int i = 0; i < height; i++) {
+            if (n + width + 1 > chunk.length) {
+                out.write(chunk, 0, n);
+                n = 0;
+            }
+            n = encodeRow(i, chunk, n);
+        }
+        out.write(chunk, 0, n);
+    }
+
+    // Put the hex digits of row i and a newline in b from n, and return where
+    // they end
+    private int encodeRow(int i, byte[] b, int n)
+    {
+        int row = i * wordsPerRow;
+        for (int x = 0; x < width; x += 16) {
+            long word = words[row + (x >>> 4)];
+            int end = Math.min(16, width - x);
+            for (int j = 0; j < end; j++, word >>>= 4)
+                b[n++] = HEX_DIGITS[(int) word & 0xF];
         }
-        return s.toString();
+        b[n++] = '\n';
+        return n;
     }
 
     public void set(int x, int y, int v) throws BadCommand
     {
-        try {
-            pixels[y][x] = v;
-        } catch (ArrayIndexOutOfBoundsException e) {
+        if (x < 0 || x >= width || y < 0 || y >= height)
             throw new BadCommand(x, y);
-        }
+
+        int index = y * wordsPerRow + (x >>> 4);
+        int shift = (x & 15) << 2;
+        words[index] = (words[index] & ~(0xFL << shift)) | ((long) (v & 0xF) << shift);
+
+        columnBreaks = null;
     }
 
     public int get(int x, int y)
     {
-        return pixels[y][x];
+        if (x < 0 || x >= width || y < 0 || y >= height)
+            throw new ArrayIndexOutOfBoundsException("(" + x + ", " + y + ")");
+
+        return (int) (words[y * wordsPerRow + (x >>> 4)] >>> ((x & 15) << 2)) & 0xF;
     }
 
     public int get(Coordinate c)
@@ -97,19 +296,198 @@ public class Image
         return get(c.x, c.y);
     }
 
+    // Get a copy of the pixels as rows of colours. Changing the copy does not
+    // change the image.
     public int[][] getPixels()
     {
+        int[][] pixels = new int[height][width];
+        for (int i = 0; i < height; i++)
+            for (int j = 0; j < width; j++)
+                pixels[i][j] = get(j, i);
         return pixels;
     }
 
+    // Get the last x (for left and right) or y (for up and down) reached by
+    // going from (x, y) in the given direction without leaving the colour of
+    // (x, y).
+    public int getRunEnd(int x, int y, Direction d)
+    {
+        if (columnBreaks == null)
+            buildRuns();
+
+        switch (d) {
+            case LEFT:
+                return previousBreak(rowBreaks, y * breaksPerRow, x);
+            case RIGHT:
+                return nextBreak(rowBreaks, y * breaksPerRow, x);
+            case UP:
+                return previousBreak(columnBreaks, x * breaksPerColumn, y);
+            default:
+                return nextBreak(columnBreaks, x * breaksPerColumn, y);
+        }
+    }
+
+    // The first break at or after i in the line of breaks starting at base,
+    // which there always is as the last pixel of a line ends a run
+    private static int nextBreak(long[] breaks, int base, int i)
+    {
+        int k = i >>> 6;
+        long word = breaks[base + k] & (-1L << (i & 63));
+        while (word == 0)
+            word = breaks[base + ++k];
+        return (k << 6) + Long.numberOfTrailingZeros(word);
+    }
+
+    // Just after the last break before i in the line of breaks starting at
+    // base, or 0 if there is none
+    private static int previousBreak(long[] breaks, int base, int i)
+    {
+        if (i == 0)
+            return 0;
+
+        int k = (i - 1) >>> 6;
+        long word = breaks[base + k] & (-1L >>> (63 - ((i - 1) & 63)));
+        while (word == 0) {
+            if (k == 0)
+                return 0;
+            word = breaks[base + --k];
+        }
+        return (k << 6) + 64 - Long.numberOfLeadingZeros(word);
+    }
+
+    // The last x of the run going right from (x, y), found without the run
+    // boundaries. The nibbles of the word that differ from the colour are
+    // found with an XOR, so up to 16 pixels are checked at a time.
+    int rowRunEnd(int x, int y)
+    {
+        int row = y * wordsPerRow;
+        long pattern = ((words[row + (x >>> 4)] >>> ((x & 15) << 2)) & 0xF) * 0x1111111111111111L;
+        while (true) {
+            // The nibbles from x on that differ from the colour, at the bottom
+            long diff = (words[row + (x >>> 4)] ^ pattern) >>> ((x & 15) << 2);
+            int left = 16 - (x & 15);
+            int same = Math.min(Long.numberOfTrailingZeros(diff) >>> 2, left);
+
+            if (same < left || x + left >= width)
+                return Math.min(x + same, width) - 1;
+            x += left;
+        }
+    }
+
+    // The first x of the run going left from (x, y), the same way
+    int rowRunStart(int x, int y)
+    {
+        int row = y * wordsPerRow;
+        long pattern = ((words[row + (x >>> 4)] >>> ((x & 15) << 2)) & 0xF) * 0x1111111111111111L;
+        while (true) {
+            // The nibbles up to x that differ from the colour, at the top
+            long diff = (words[row + (x >>> 4)] ^ pattern) << (60 - ((x & 15) << 2));
+            int left = (x & 15) + 1;
+            int same = Math.min(Long.numberOfLeadingZeros(diff) >>> 2, left);
+
+            if (same < left || x - left < 0)
+                return x - same + 1;
+            x -= left;
+        }
+    }
+
+    public boolean rowContains(int y, int colour)
+    {
+        if (columnBreaks == null)
+            buildRuns();
+
+        return (rowColours[y] & (1 << colour)) != 0;
+    }
+
+    public boolean columnContains(int x, int colour)
+    {
+        if (columnBreaks == null)
+            buildRuns();
+
+        return (columnColours[x] & (1 << colour)) != 0;
+    }
+
+    private void buildRuns()
+    {
+        int perRow = (width + 63) >>> 6;
+        int perColumn = (height + 63) >>> 6;
+        long[] horizontal = new long[height * perRow];
+        long[] vertical = new long[width * perColumn];
+        int[] rows = new int[height];
+        int[] columns = new int[width];
+
+        for (int i = 0; i < height; i++) {
+            int row = i * wordsPerRow;
+            for (int k = 0; k < wordsPerRow; k++) {
+                long word = words[row + k];
+                // The pixels that differ from the ones on their right, and
+                // from the ones below, all of them on the last row
+                long next = k + 1 < wordsPerRow ? words[row + k + 1] << 60 : 0;
+                long right = word ^ ((word >>> 4) | next);
+                long below = i + 1 < height ? word ^ words[row + wordsPerRow + k] : -1L;
+
+                int end = Math.min(16, width - 16 * k);
+                for (int j = 0; j < end; j++, word >>>= 4, right >>>= 4, below >>>= 4) {
+                    int x = 16 * k + j;
+                    rows[i] |= 1 << (word & 0xF);
+                    columns[x] |= 1 << (word & 0xF);
+                    if ((right & 0xF) != 0 || x + 1 == width)
+                        horizontal[i * perRow + (x >>> 6)] |= 1L << x;
+                    if ((below & 0xF) != 0)
+                        vertical[x * perColumn + (i >>> 6)] |= 1L << i;
+                }
+            }
+        }
+
+        rowColours = rows;
+        columnColours = columns;
+        breaksPerRow = perRow;
+        rowBreaks = horizontal;
+        breaksPerColumn = perColumn;
+        columnBreaks = vertical;
+    }
+
+    // Whether the other image has the same size and pixels as this one. Rows
+    // are compared a word of 16 pixels at a time; the unused bits at the end
+    // of each row are 0 in both.
+    public boolean contentEquals(Image other)
+    {
+        return other != null && height == other.height && width == other.width
+                && Arrays.equals(words, other.words);
+    }
+
+    // Describe the first pixel, in row order, where the other image differs
+    // from this one, or return null if they are the same. Within a word, the
+    // lowest differing bits give the first differing pixel.
+    public String firstDifference(Image other)
+    {
+        if (other == null)
+            return "No image to compare with";
+
+        if (height != other.height || width != other.width)
+            return "Sizes differ: " + height + "x" + width + " and " + other.height + "x" + other.width;
+
+        for (int k = 0; k < words.length; k++) {
+            long diff = words[k] ^ other.words[k];
+            if (diff != 0) {
+                int x = (k % wordsPerRow) * 16 + (Long.numberOfTrailingZeros(diff) >>> 2);
+                int y = k / wordsPerRow;
+                return "Pixels differ at (" + x + ", " + y + "): " + Integer.toHexString(get(x, y))
+                        + " and " + Integer.toHexString(other.get(x, y));
+            }
+        }
+
+        return null;
+    }
+
     public int getWidth()
     {
-        return pixels[0].length;
+        return width;
     }
 
     public int getHeight()
     {
-        return pixels.length;
+        return height;
     }
 
     // TASK 2: Implement the compress method to create and return a list of
@@ -137,6 +515,27 @@ public class Image
         return c.compress();
     }
 
+    // Compress the image with the given strategy, such as
+    // CompressionStrategy.ROWS when speed matters more than size
+    public Drawing compress(CompressionStrategy strategy)
+    {
+        return strategy.compress(this);
+    }
+
+    // Compress the image in tiles of TiledCompressor.TILE_SIZE pixels square,
+    // in parallel. This takes a few more commands than compress().
+    public Drawing compressTiled()
+    {
+        return compressTiled(TiledCompressor.TILE_SIZE);
+    }
+
+    public Drawing compressTiled(int tileSize)
+    {
+        TiledCompressor c = new TiledCompressor(this, tileSize);
+
+        return c.compress();
+    }
+
     // This is the standard 4-bit EGA colour scheme, where the numbers represent
     // 24-bit RGB colours.
     static int[] colours =
@@ -145,33 +544,123 @@ public class Image
                     0x555555, 0x5555FF, 0x55FF55, 0x55FFFF,
                     0xFF5555, 0xFF55FF, 0xFFFF55, 0xFFFFFF};
 
+    // The same colours as the palette of a 4-bit indexed image
+    private static final IndexColorModel PALETTE = palette();
+
+    private static IndexColorModel palette()
+    {
+        byte[] r = new byte[16];
+        byte[] g = new byte[16];
+        byte[] b = new byte[16];
+        for (int i = 0; i < 16; i++) {
+            r[i] = (byte) (colours[i] >>> 16);
+            g[i] = (byte) (colours[i] >>> 8);
+            b[i] = (byte) colours[i];
+        }
+        return new IndexColorModel(4, 16, r, g, b);
+    }
+
     // Render the image into a PNG with the given filename.
-    public void toPNG(String filename)
+    public void toPNG(String filename) throws IOException
     {
+        try (OutputStream out = new FileOutputStream(filename + ".png")) {
+            writePNG(out);
+        }
+    }
 
-        BufferedImage im = new BufferedImage(pixels[0].length, pixels.length, BufferedImage.TYPE_INT_RGB);
+    // Encode the image as a PNG with a 4-bit palette into the stream. The
+    // pixels are copied 16 at a time into the data of an indexed image,
+    // which packs two pixels per byte like the words of this one, except
+    // that its first pixel is in the high half of each byte.
+    public void writePNG(OutputStream out) throws IOException
+    {
+        BufferedImage im = new BufferedImage(width, height, BufferedImage.TYPE_BYTE_BINARY, PALETTE);
+        byte[] data = ((DataBufferByte) im.getRaster().getDataBuffer()).getData();
+        int stride = ((MultiPixelPackedSampleModel) im.getSampleModel()).getScanlineStride();
 
-        for (int i = 0; i < pixels.length; i++)
-            for (int j = 0; j < pixels[i].length; j++) {
-                im.setRGB(j, i, colours[pixels[i][j]]);
-            }
+        for (int i = 0; i < height; i++) {
+            int row = i * wordsPerRow;
+            int offset = i * stride;
+            for (int k = 0; k < wordsPerRow; k++) {
+                long word = words[row + k];
+                word = ((word & 0x0F0F0F0F0F0F0F0FL) << 4) | ((word >>> 4) & 0x0F0F0F0F0F0F0F0FL);
 
-        File f = new File(filename + ".png");
-        try {
-            ImageIO.write(im, "PNG", f);
-        } catch (IOException e) {
-            System.out.println("Unable to write image");
-            System.exit(1);
+                int bytes = Math.min(8, stride - 8 * k);
+                for (int j = 0; j < bytes; j++)
+                    data[offset + 8 * k + j] = (byte) (word >>> (j << 3));
+            }
         }
+
+        ImageIO.write(im, "PNG", out);
     }
 
+    // Compress the image file given and print the drawing commands, or with
+    // --binary save them next to it in a .drawb file instead, or with
+    // --archive in a .drawz file. With --tiled the image is compressed in
+    // tiles in parallel, and the number of commands spent moving between
+    // tiles is printed on stderr. With --strategy name, the image is
+    // compressed with the CompressionStrategy of that name instead.
     public static void main(String[] args)
     {
-        Image i = new Image(args[0]);
+        String format = "";
+        boolean tiled = false;
+        CompressionStrategy strategy = CompressionStrategy.GREEDY;
+        for (int k = 1; k < args.length; k++) {
+            if (args[k].equals("--tiled")) {
+                tiled = true;
+            } else if (args[k].equals("--strategy") && k + 1 < args.length) {
+                strategy = CompressionStrategy.forName(args[++k]);
+                if (strategy == null) {
+                    System.out.println("Unknown strategy: " + args[k]);
+                    System.exit(1);
+                }
+            } else {
+                format = args[k];
+            }
+        }
+
+        Image i = null;
+        try {
+            i = read(args[0]);
+        } catch (FileNotFoundException e) {
+            System.out.println("File not found: " + args[0]);
+            System.exit(1);
+        } catch (BadFormat e) {
+            System.out.println(e.getMessage());
+            System.exit(1);
+        } catch (IOException e) {
+            System.exit(2);
+        }
 
 //        System.out.print(i.compressWithDebug().toString());
-        System.out.print(i.compress().toString());
+        Drawing d;
+        if (tiled) {
+            TiledCompressor c = new TiledCompressor(i, TiledCompressor.TILE_SIZE);
+            d = c.compress();
+            System.err.println("Stitch commands: " + c.getStitchCommands() + " of " + d.commands.size());
+        } else {
+            d = i.compress(strategy);
+        }
 
-        i.toPNG(args[0]);
+        try {
+            if (format.equals("--binary"))
+                d.toBinary(args[0]);
+            else if (format.equals("--archive"))
+                d.toArchive(args[0]);
+            else {
+                d.write(System.out);
+                System.out.flush();
+            }
+        } catch (IOException e) {
+            System.out.println("Unable to write drawing");
+            System.exit(1);
+        }
+
+        try {
+            i.toPNG(args[0]);
+        } catch (IOException e) {
+            System.out.println("Unable to write image");
+            System.exit(1);
+        }
     }
 }
@@ -6,10 +6,27 @@ import org.junit.runners.Parameterized;
 import org.junit.runners.Parameterized.Parameter;
 import org.junit.runners.Parameterized.Parameters;
 
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.util.Arrays;
 import java.util.Collection;
+import java.util.Random;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 
 @RunWith(Enclosed.class)
@@ -23,12 +40,12 @@ public class ImageCompressorTest
                 {"./test-images/test-image3", 200},
                 {"./test-images/test-image4", 22},
                 {"./test-images/test-image5", 26},
-                {"./pixel-art/pixel-art1", 215},
-                {"./pixel-art/pixel-art2", 181},
-                {"./pixel-art/pixel-art3", 43},
+                {"./pixel-art/pixel-art1", 218},
+                {"./pixel-art/pixel-art2", 184},
+                {"./pixel-art/pixel-art3", 38},
                 {"./pixel-art/pixel-art4", 55},
-                {"./pixel-art/pixel-art5", 176},
-                {"./pixel-art/pixel-art6", 113},
+                {"./pixel-art/pixel-art5", 175},
+                {"./pixel-art/pixel-art6", 110},
         });
     }
 
@@ -63,11 +80,559 @@ public class ImageCompressorTest
             }
 
             try {
-                assertEquals(i.toString(), d.draw().toString());
+                Image drawn = d.draw();
+                assertTrue(i.firstDifference(drawn), i.contentEquals(drawn));
             } catch (BadCommand e) {
                 fail(e.toString());
             }
         }
+
+        @Test
+        public void testStrategies() throws BadCommand
+        {
+            Image i = new Image(filename);
+
+            CompressionStrategy[] strategies = {
+                    CompressionStrategy.GREEDY, CompressionStrategy.TILED,
+                    CompressionStrategy.ROWS, CompressionStrategy.COLUMNS, CompressionStrategy.SCANLINE};
+            int best = Integer.MAX_VALUE;
+            for (CompressionStrategy s : strategies) {
+                Drawing d = i.compress(s);
+                Image drawn = d.draw();
+                assertTrue(i.firstDifference(drawn), i.contentEquals(drawn));
+                best = Math.min(best, d.commands.size());
+            }
+
+            assertEquals(best, i.compress(CompressionStrategy.BEST).commands.size());
+        }
+
+        @Test
+        public void testBeam() throws BadCommand
+        {
+            Image i = new Image(filename);
+
+            Drawing d = new BeamCompressor(2, 500).compress(i);
+            Image drawn = d.draw();
+            assertTrue(i.firstDifference(drawn), i.contentEquals(drawn));
+            assertTrue(d.commands.size() <= i.compress().commands.size());
+        }
+
+        @Test
+        public void testFirstDifference() throws BadCommand
+        {
+            Image i = new Image(filename);
+            Image drawn = i.compress().draw();
+            assertTrue(i.contentEquals(drawn));
+
+            int x = i.getWidth() - 1;
+            int y = i.getHeight() / 2;
+            drawn.set(x, y, (i.get(x, y) + 1) % 16);
+
+            assertFalse(i.contentEquals(drawn));
+            assertEquals("Pixels differ at (" + x + ", " + y + "): " + Integer.toHexString(i.get(x, y))
+                    + " and " + Integer.toHexString(drawn.get(x, y)), i.firstDifference(drawn));
+        }
+
+        @Test
+        public void testPNG() throws IOException
+        {
+            Image i = new Image(filename);
+
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            i.writePNG(out);
+            BufferedImage png = ImageIO.read(new ByteArrayInputStream(out.toByteArray()));
+
+            for (int y = 0; y < i.getHeight(); y++) {
+                for (int x = 0; x < i.getWidth(); x++)
+                    assertEquals(Image.colours[i.get(x, y)], png.getRGB(x, y) & 0xFFFFFF);
+            }
+        }
+
+        @Test
+        public void testTiled()
+        {
+            Image i = new Image(filename);
+
+            Drawing d = i.compressTiled(16);
+
+            try {
+                Image drawn = d.draw();
+                assertTrue(i.firstDifference(drawn), i.contentEquals(drawn));
+            } catch (BadCommand e) {
+                fail(e.toString());
+            }
+        }
+    }
+
+    @RunWith(Parameterized.class)
+    public static class BinaryDrawingTests
+    {
+        @Parameter(0)
+        public String filename;
+
+        @Parameter(1)
+        public Integer maxNumberCommands;
+
+        @Parameters(name = "{0}")
+        public static Collection<Object[]> data()
+        {
+            return ImageCompressorTest.data();
+        }
+
+        @Test
+        public void testRoundTrip() throws IOException, BadFormat
+        {
+            Drawing d = new Image(filename).compress();
+
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            d.writeBinary(out);
+
+            Drawing read = Drawing.readBinary(new ByteArrayInputStream(out.toByteArray()));
+
+            assertEquals(d.toString(), read.toString());
+        }
+
+        @Test
+        public void testArchiveRoundTrip() throws IOException, BadFormat
+        {
+            Drawing d = new Image(filename).compress();
+
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            d.writeArchive(out);
+
+            Drawing read = Drawing.readArchive(new ByteArrayInputStream(out.toByteArray()));
+
+            assertEquals(d.toString(), read.toString());
+        }
+    }
+
+    public static class BinaryFormatTests
+    {
+        @Test
+        public void testBadBackground() throws IOException
+        {
+            byte[] binary = {'D', 'R', 'W', 'B', 2, 2, (byte) 200};
+            try {
+                Drawing.readBinary(new ByteArrayInputStream(binary));
+                fail("Background 200 accepted");
+            } catch (BadFormat e) {
+                assertEquals("Bad background colour: 200", e.getMessage());
+            }
+
+            byte[] archive = {'D', 'R', 'W', 'Z', 2, 2, (byte) 200, 0, 0};
+            try {
+                Drawing.readArchive(new ByteArrayInputStream(archive));
+                fail("Background 200 accepted");
+            } catch (BadFormat e) {
+                assertEquals("Bad background colour: 200", e.getMessage());
+            }
+        }
+
+        @Test
+        public void testBadSize() throws IOException
+        {
+            // A height of 2^31 + 1, which wraps around to a negative int
+            byte[] binary = {'D', 'R', 'W', 'B', (byte) 0x81, (byte) 0x80, (byte) 0x80, (byte) 0x80, 0x08, 2, 0};
+            try {
+                Drawing.readBinary(new ByteArrayInputStream(binary));
+                fail("Negative height accepted");
+            } catch (BadFormat e) {
+                assertEquals("Bad size: -2147483647x2", e.getMessage());
+            }
+
+            byte[] archive = {'D', 'R', 'W', 'Z', (byte) 0x81, (byte) 0x80, (byte) 0x80, (byte) 0x80, 0x08, 2, 0, 0, 0};
+            try {
+                Drawing.readArchive(new ByteArrayInputStream(archive));
+                fail("Negative height accepted");
+            } catch (BadFormat e) {
+                assertEquals("Bad size: -2147483647x2", e.getMessage());
+            }
+        }
+
+        @Test
+        public void testStoredArchive() throws IOException, BadFormat
+        {
+            Drawing d = new Drawing(2, 3, 1);
+            d.addCommand(new DrawingCommand("right 2 f"));
+
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            d.writeArchive(out);
+            byte[] archive = out.toByteArray();
+            assertEquals(DrawingArchive.STORED, archive[7]);
+
+            Drawing read = Drawing.readArchive(new ByteArrayInputStream(archive));
+            assertEquals(d.toString(), read.toString());
+        }
+
+        @Test
+        public void testArchiveCount() throws IOException, BadFormat
+        {
+            // 2^31 - 1 commands announced, and only 5 bytes of them
+            byte[] archive = {'D', 'R', 'W', 'Z', 2, 2, 0, DrawingArchive.CODED, -1, -1, -1, -1, 7, 0, 0, 0, 0, 0};
+            try {
+                Drawing.readArchive(new ByteArrayInputStream(archive));
+                fail("Truncated archive accepted");
+            } catch (EOFException e) {
+                assertEquals("Truncated drawing archive", e.getMessage());
+            }
+
+            byte[] size = {'D', 'R', 'W', 'Z', -1, -1, -1, -1, 15, 2, 0, DrawingArchive.STORED};
+            try {
+                Drawing.readArchive(new ByteArrayInputStream(size));
+                fail("Negative height accepted");
+            } catch (BadFormat e) {
+                assertEquals("Bad size: -1x2", e.getMessage());
+            }
+        }
+    }
+
+    public static class SolidImageTests
+    {
+        @Test
+        public void testZeroWidth() throws BadCommand
+        {
+            Image i = new Image(3, 0, 1);
+            assertEquals("\n\n\n", i.toString());
+            assertEquals(0, i.tile(0, 1, 2, 0).getWidth());
+
+            Drawing d = new Drawing(3, 0, 1);
+            assertTrue(i.contentEquals(d.draw()));
+            assertTrue(i.contentEquals(i.compress().draw()));
+        }
+
+        @Test
+        public void testBadColour()
+        {
+            try {
+                new Image(2, 2, 16);
+                fail("Colour 16 accepted");
+            } catch (IllegalArgumentException e) {
+                assertEquals("Bad colour: 16", e.getMessage());
+            }
+        }
+    }
+
+    // Images over ImageDecoder.PARALLEL_THRESHOLD bytes, decoded in stripes
+    public static class StripeDecoderTests
+    {
+        private static final int LINES = 1024;
+
+        private static final int LENGTH = 1100;
+
+        private static byte[] image()
+        {
+            byte[] b = new byte[LINES * (LENGTH + 1)];
+            for (int i = 0; i < LINES; i++) {
+                for (int j = 0; j < LENGTH; j++)
+                    b[i * (LENGTH + 1) + j] = (byte) "0123456789abcdef".charAt((i + j) & 15);
+                b[i * (LENGTH + 1) + LENGTH] = '\n';
+            }
+
+            assertTrue(b.length >= ImageDecoder.PARALLEL_THRESHOLD);
+            return b;
+        }
+
+        private static String decode(byte[] b) throws IOException
+        {
+            try {
+                Image.read(new ByteArrayInputStream(b));
+                return null;
+            } catch (BadFormat e) {
+                return e.getMessage();
+            }
+        }
+
+        @Test
+        public void testDecode() throws IOException, BadFormat
+        {
+            Image i = Image.read(new ByteArrayInputStream(image()));
+            assertEquals(LINES, i.getHeight());
+            assertEquals(LENGTH, i.getWidth());
+            for (int y = 0; y < LINES; y += 37) {
+                for (int x = 0; x < LENGTH; x += 13)
+                    assertEquals((x + y) & 15, i.get(x, y));
+            }
+        }
+
+        // Each error is reported with the line it is on, and of two errors
+        // in different stripes the earlier one is
+        @Test
+        public void testErrors() throws IOException
+        {
+            byte[] b = image();
+            b[100 * (LENGTH + 1) + 7] = 'x';
+            assertEquals("Invalid contents: x on line 101", decode(b));
+
+            byte[] c = image();
+            c[900 * (LENGTH + 1) + LENGTH - 1] = '\n';
+            assertEquals("Inconsistent line lengths: 1100 and 1099 on lines 1 and 901", decode(c));
+
+            c[100 * (LENGTH + 1) + 7] = 'x';
+            assertEquals("Invalid contents: x on line 101", decode(c));
+        }
+    }
+
+    public static class DrawingParserTests
+    {
+        @Test
+        public void testParse() throws BadFormat
+        {
+            String[][] lines = {
+                    {"up 1", "up 1 "},
+                    {"up 1 f ", "up 1 f"},
+                    {"left +3 A", "left 3 a"},
+                    {"down -2", "down -2 "},
+                    {"right 0 0", "right 0 0"},
+                    {"down 12\t3", "down 12 3"},
+            };
+
+            for (String[] line : lines)
+                assertEquals(line[1], DrawingCommand.parse(line[0]).toString());
+        }
+
+        // The messages the regex split parser printed for the same lines
+        @Test
+        public void testParseErrors()
+        {
+            String[][] lines = {
+                    {"up", "Bad command (should have 2 or 3 parts): up"},
+                    {"up 1 2 3", "Bad command (should have 2 or 3 parts): up 1 2 3"},
+                    {"", "Bad command (should have 2 or 3 parts): "},
+                    {"north 1", "Bad direction (should be up, down, left, or right): north"},
+                    {"Up 1", "Bad direction (should be up, down, left, or right): Up"},
+                    {"\tup 1", "Bad direction (should be up, down, left, or right): "},
+                    {"up x", "Bad length (should be a number): x"},
+                    {"up  1", "Bad length (should be a number): "},
+                    {"up 1.5", "Bad length (should be a number): 1.5"},
+                    {"up 99999999999", "Bad length (should be a number): 99999999999"},
+                    {"up 1 g", "Bad colour (should be a hex number betweeen 0 and f): g"},
+                    {"up 1 10", "Bad colour (should be a hex number betweeen 0 and f): 10"},
+                    {"up 1 -1", "Bad colour (should be a hex number betweeen 0 and f): -1"},
+            };
+
+            for (String[] line : lines) {
+                try {
+                    DrawingCommand.parse(line[0]);
+                    fail("Accepted " + line[0]);
+                } catch (BadFormat e) {
+                    assertEquals(line[1], e.getMessage());
+                }
+            }
+        }
+
+        @Test
+        public void testBadHeader() throws IOException
+        {
+            String[][] drawings = {
+                    {"", "Expected the height on the first line: null"},
+                    {"2x\n", "Expected the height on the first line: 2x"},
+                    {"2\n\n", "Expected the width on the second line: "},
+                    {"2\n2\n1f\n", "Expected the background colour on the third line: 1f"},
+                    {"2\n2\n-1\n", "Expected the background colour on the third line: -1"},
+            };
+
+            for (String[] drawing : drawings) {
+                try {
+                    Drawing.read(new ByteArrayInputStream(drawing[0].getBytes(StandardCharsets.UTF_8)));
+                    fail("Accepted " + drawing[0]);
+                } catch (BadFormat e) {
+                    assertEquals(drawing[1], e.getMessage());
+                }
+            }
+        }
+    }
+
+    @RunWith(Parameterized.class)
+    public static class ReplayTests
+    {
+        @Parameter(0)
+        public String filename;
+
+        @Parameters(name = "{0}")
+        public static Collection<Object[]> data()
+        {
+            return Arrays.asList(new Object[][]{
+                    {"./test-drawing/test-drawing1"},
+                    {"./test-drawing/test-drawing3"},
+                    {"./test-drawing/test-drawing5"},
+                    {"./pixel-art-drawing/pixel-art-drawing1"},
+                    {"./pixel-art-drawing/pixel-art-drawing4"},
+            });
+        }
+
+        @Test
+        public void testReplay() throws IOException, BadFormat, BadCommand
+        {
+            Image drawn = Drawing.read(filename).draw();
+            Image replayed = Drawing.replay(filename);
+            assertTrue(drawn.firstDifference(replayed), drawn.contentEquals(replayed));
+        }
+
+        @Test
+        public void testReplayOutside() throws IOException, BadFormat
+        {
+            // The paint leaving the image comes before a line that does not
+            // parse, and is the one reported
+            Path file = Files.createTempFile("replay", ".drawing");
+            try {
+                Files.write(file, "2\n3\n0\nright 1 f\ndown 2 3\nnorth 1\n".getBytes(StandardCharsets.UTF_8));
+                Drawing.replay(file.toString());
+                fail("Painted outside the image");
+            } catch (BadCommand e) {
+                assertEquals("Cannot draw at coordinate (1, 2)", e.getMessage());
+            } finally {
+                Files.delete(file);
+            }
+        }
+    }
+
+    // Random pixels in every colour: the most commands an image of its size
+    // can need, more than the Compressor used to stop at
+    public static class NoiseTests
+    {
+        private static Image noise(int height, int width)
+        {
+            Random random = new Random(518);
+            Image i = new Image(height, width, 0);
+            for (int y = 0; y < height; y++) {
+                for (int x = 0; x < width; x++) {
+                    try {
+                        i.set(x, y, random.nextInt(16));
+                    } catch (BadCommand e) {
+                        fail(e.toString());
+                    }
+                }
+            }
+
+            return i;
+        }
+
+        @Test
+        public void testGreedy() throws BadCommand
+        {
+            Image i = noise(90, 90);
+
+            Drawing d = i.compress();
+            assertTrue(d.commands.size() > 10000);
+
+            Image drawn = d.draw();
+            assertTrue(i.firstDifference(drawn), i.contentEquals(drawn));
+        }
+
+        @Test
+        public void testTiled() throws BadCommand
+        {
+            Image i = noise(130, 130);
+
+            Image drawn = i.compressTiled().draw();
+            assertTrue(i.firstDifference(drawn), i.contentEquals(drawn));
+        }
+
+        @Test
+        public void testBest() throws BadCommand
+        {
+            Image i = noise(90, 90);
+
+            for (CompressionStrategy s : new CompressionStrategy[]{CompressionStrategy.BEST, new BeamCompressor(2, 500)}) {
+                Image drawn = i.compress(s).draw();
+                assertTrue(i.firstDifference(drawn), i.contentEquals(drawn));
+            }
+        }
+    }
+
+    public static class ServerTests
+    {
+        @Test
+        public void testRoundTrip() throws IOException
+        {
+            CompressionServer server = new CompressionServer(0, 2);
+            server.start();
+            try {
+                for (Object[] f : ImageCompressorTest.data()) {
+                    Image i = new Image((String) f[0]);
+                    byte[] image = Files.readAllBytes(Paths.get((String) f[0]));
+
+                    String drawing = post(server, "/compress", image);
+                    assertEquals(i.compress().toString(), drawing);
+
+                    String drawn = post(server, "/draw", drawing.getBytes(StandardCharsets.UTF_8));
+                    assertEquals(i.toString(), drawn);
+                }
+            } finally {
+                server.stop();
+            }
+        }
+
+        @Test
+        public void testBadImage() throws IOException
+        {
+            CompressionServer server = new CompressionServer(0, 1);
+            server.start();
+            try {
+                HttpURLConnection c = connect(server, "/compress", "12\n1x\n".getBytes(StandardCharsets.UTF_8));
+                assertEquals(400, c.getResponseCode());
+            } finally {
+                server.stop();
+            }
+        }
+
+        @Test
+        public void testTooLarge() throws IOException
+        {
+            CompressionServer server = new CompressionServer(0, 1, 100, 10);
+            server.start();
+            try {
+                HttpURLConnection c = connect(server, "/draw", "100000\n100000\n0\n".getBytes(StandardCharsets.UTF_8));
+                assertEquals(413, c.getResponseCode());
+
+                byte[] archive = {'D', 'R', 'W', 'Z', 2, 2, 0, DrawingArchive.CODED, -1, -1, -1, -1, 7, 0, 0, 0, 0, 0};
+                c = connect(server, "/draw", archive);
+                assertEquals(400, c.getResponseCode());
+
+                StringBuilder image = new StringBuilder();
+                for (int y = 0; y < 20; y++)
+                    image.append("0123456789abcdef0123\n");
+                c = connect(server, "/compress", image.toString().getBytes(StandardCharsets.UTF_8));
+                assertEquals(413, c.getResponseCode());
+
+                // The size is checked before any of the pixels are decoded
+                image.setCharAt(5, 'g');
+                c = connect(server, "/compress", image.toString().getBytes(StandardCharsets.UTF_8));
+                assertEquals(413, c.getResponseCode());
+
+                // Still serving
+                String drawing = post(server, "/compress", "12\n1f\n".getBytes(StandardCharsets.UTF_8));
+                assertEquals("12\n1f\n", post(server, "/draw", drawing.getBytes(StandardCharsets.UTF_8)));
+            } finally {
+                server.stop();
+            }
+        }
+
+        private static HttpURLConnection connect(CompressionServer server, String path, byte[] body) throws IOException
+        {
+            URL url = new URL("http://localhost:" + server.getPort() + path);
+            HttpURLConnection c = (HttpURLConnection) url.openConnection();
+            c.setRequestMethod("POST");
+            c.setDoOutput(true);
+            try (OutputStream out = c.getOutputStream()) {
+                out.write(body);
+            }
+            return c;
+        }
+
+        private static String post(CompressionServer server, String path, byte[] body) throws IOException
+        {
+            HttpURLConnection c = connect(server, path, body);
+            assertEquals(200, c.getResponseCode());
+
+            ByteArrayOutputStream data = new ByteArrayOutputStream();
+            try (InputStream in = c.getInputStream()) {
+                byte[] chunk = new byte[4096];
+                for (int n = in.read(chunk); n >= 0; n = in.read(chunk))
+                    data.write(chunk, 0, n);
+            }
+            return new String(data.toByteArray(), StandardCharsets.UTF_8);
+        }
     }
 
     public static class Compress
@@ -0,0 +1,212 @@
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+// Decodes the text format of an Image (one line of hex digits per row of
+// pixels) straight from the bytes of the file into the packed pixels of the
+// Image, without building a String per line. Large files are decoded in
+// stripes of rows on the common fork-join pool, since rows do not depend on
+// each other.
+class ImageDecoder
+{
+
+    // Files at least this big are decoded in parallel
+    static final int PARALLEL_THRESHOLD = 1 << 20;
+
+    // Stripes are split until they hold fewer bytes than this
+    static final int STRIPE_SIZE = 1 << 16;
+
+    // The value of each byte as a hex digit, or -1 if it is not one
+    private static final byte[] HEX_VALUES = new byte[256];
+
+    static {
+        Arrays.fill(HEX_VALUES, (byte) -1);
+        for (int i = 0; i < 10; i++)
+            HEX_VALUES['0' + i] = (byte) i;
+        for (int i = 0; i < 6; i++) {
+            HEX_VALUES['a' + i] = (byte) (10 + i);
+            HEX_VALUES['A' + i] = (byte) (10 + i);
+        }
+    }
+
+    private final ByteBuffer data;
+
+    // Offsets of the first byte and one past the last byte of each line,
+    // line terminators excluded
+    private int[] lineStarts = new int[16];
+
+    private int[] lineEnds = new int[16];
+
+    private int lines = 0;
+
+    ImageDecoder(ByteBuffer data)
+    {
+        this.data = data;
+    }
+
+    // Memory-map the file and decode it into the image. Throws a BadFormat
+    // if it is not a valid image.
+    static void decodeFile(String filename, Image image) throws IOException, BadFormat
+    {
+        ByteBuffer data;
+        try (RandomAccessFile file = new RandomAccessFile(filename, "r")) {
+            FileChannel channel = file.getChannel();
+            data = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+
+        decode(data, "Empty file: " + filename, image);
+    }
+
+    // Decode the bytes into the image. Throws a BadFormat with the message
+    // given if there are no lines, or the message for the first bad line.
+    static void decode(ByteBuffer data, String empty, Image image) throws BadFormat
+    {
+        scan(data, empty).decodeInto(image);
+    }
+
+    // Find the lines of the bytes, which tell the size of the image before
+    // it is decoded with decodeInto. Throws a BadFormat with the message
+    // given if there are none.
+    static ImageDecoder scan(ByteBuffer data, String empty) throws BadFormat
+    {
+        ImageDecoder decoder = new ImageDecoder(data);
+        decoder.findLines();
+
+        if (decoder.lines == 0)
+            throw new BadFormat(empty);
+
+        return decoder;
+    }
+
+    // The size of the image, as the number of lines and the length of the
+    // first one
+    int getHeight()
+    {
+        return lines;
+    }
+
+    int getWidth()
+    {
+        return lineEnds[0] - lineStarts[0];
+    }
+
+    // Split the data into lines the same way BufferedReader.readLine does:
+    // lines end with "\n", "\r" or "\r\n", and the last line may have no end.
+    void findLines()
+    {
+        int limit = data.limit();
+        int start = 0;
+        for (int i = 0; i < limit; i++) {
+            byte b = data.get(i);
+            if (b == '\n' || b == '\r') {
+                addLine(start, i);
+                if (b == '\r' && i + 1 < limit && data.get(i + 1) == '\n')
+                    i++;
+                start = i + 1;
+            }
+        }
+
+        if (start < limit)
+            addLine(start, limit);
+    }
+
+    private void addLine(int start, int end)
+    {
+        if (lines == lineStarts.length) {
+            lineStarts = Arrays.copyOf(lineStarts, lines * 2);
+            lineEnds = Arrays.copyOf(lineEnds, lines * 2);
+        }
+
+        lineStarts[lines] = start;
+        lineEnds[lines] = end;
+        lines++;
+    }
+
+    // Size the image after the number of lines and the length of the first
+    // one, then check and copy every line into it. Whether in stripes or
+    // not, the error reported is the one the first bad line would give.
+    void decodeInto(Image image) throws BadFormat
+    {
+        int length = lineEnds[0] - lineStarts[0];
+        image.allocate(lines, length);
+
+        String error;
+        if (data.limit() >= PARALLEL_THRESHOLD)
+            error = ForkJoinPool.commonPool().invoke(new Stripe(image, 0, lines));
+        else
+            error = decodeLines(image, 0, lines);
+
+        if (error != null)
+            throw new BadFormat(error);
+    }
+
+    // Decode lines [from, to) and return the error message for the first bad
+    // one, or null if they are all valid.
+    private String decodeLines(Image image, int from, int to)
+    {
+        int width = image.getWidth();
+
+        for (int i = from; i < to; i++) {
+            int start = lineStarts[i];
+            int length = lineEnds[i] - start;
+
+            // Check that all of the lines have the same length as the first one.
+            if (length != width)
+                return "Inconsistent line lengths: " + width + " and " + length + " on lines 1 and " + (i + 1);
+
+            long word = 0;
+            for (int j = 0; j < width; j++) {
+                byte b = data.get(start + j);
+                int v = HEX_VALUES[b & 0xFF];
+                if (v < 0)
+                    return "Invalid contents: " + (char) (b & 0xFF) + " on line " + (i + 1);
+
+                word |= (long) v << ((j & 15) << 2);
+                if ((j & 15) == 15 || j + 1 == width) {
+                    image.setWord(i, j >>> 4, word);
+                    word = 0;
+                }
+            }
+        }
+
+        return null;
+    }
+
+    // A stripe of lines [from, to), split in halves until it is small enough
+    // to decode directly. Rows start on their own words in the Image, so
+    // stripes never write to the same word.
+    private class Stripe extends RecursiveTask<String>
+    {
+        private final Image image;
+
+        private final int from;
+
+        private final int to;
+
+        Stripe(Image image, int from, int to)
+        {
+            this.image = image;
+            this.from = from;
+            this.to = to;
+        }
+
+        protected String compute()
+        {
+            if (to - from < 2 || lineEnds[to - 1] - lineStarts[from] < STRIPE_SIZE)
+                return decodeLines(image, from, to);
+
+            int middle = (from + to) >>> 1;
+            Stripe first = new Stripe(image, from, middle);
+            Stripe second = new Stripe(image, middle, to);
+            invokeAll(first, second);
+
+            // The first half holds the earlier lines
+            String error = first.join();
+            return error != null ? error : second.join();
+        }
+    }
+}
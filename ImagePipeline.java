@@ -0,0 +1,320 @@
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Does what Image.main does for many images at once: for each image, save
+// its drawing commands in a .drawing file and render it in a .png file. The
+// work is split into stages connected by bounded queues,
+//
+//   read -> decode -> compress -> serialise -> PNG encode -> write
+//
+// so that while some images are being read or written, others are being
+// compressed. Reading and writing run on their own --io threads each, which
+// mostly wait for the disk. Each of the other stages has -j threads (the
+// number of cores by default), so that any of them can use every core when
+// the others have nothing to do, but they share -j permits to run a step, so
+// that no more than -j images are worked on at once. The queues hold a few
+// images each, which bounds the memory used however many images there are.
+//
+// Usage: java ImagePipeline [-j threads] [--io threads] <directory or glob>...
+//
+// Directories and globs are read like BatchCompressor reads them, and a line
+// is printed for each image as it is done, then the totals. Only the
+// numbers for the line are kept once an image is written. An image that
+// fails, even by running out of memory, is reported and skipped.
+public class ImagePipeline
+{
+
+    // An image going through the stages, with what each stage made of it.
+    // What a stage made is dropped once the next one is done with it. Its
+    // time is taken from when it is queued to be read.
+    static class Job
+    {
+        final Path file;
+
+        final long start = System.nanoTime();
+
+        byte[] data;
+
+        Image image;
+
+        Drawing drawing;
+
+        byte[] text;
+
+        byte[] png;
+
+        int commands;
+
+        long bytes;
+
+        Throwable error;
+
+        Job(Path file)
+        {
+            this.file = file;
+        }
+    }
+
+    // Passed down after the last job to stop the stages
+    private static final Job END = new Job(null);
+
+    // What a stage does to a job
+    interface Step
+    {
+        void run(Job job) throws Exception;
+    }
+
+    // A worker of a stage, taking jobs from one queue, doing its step while
+    // holding one of the permits of the stage and putting them on the next,
+    // so that waiting on a queue holds no permit. A job whose step throws
+    // anything is passed on as failed, with what it holds dropped, and jobs
+    // that failed in an earlier stage are passed on as they are. The last
+    // worker of a stage to stop passes END on to the next stage, however it
+    // stops.
+    private static class Worker implements Runnable
+    {
+        private final BlockingQueue<Job> in;
+
+        private final BlockingQueue<Job> out;
+
+        private final Step step;
+
+        private final AtomicInteger running;
+
+        private final Semaphore permits;
+
+        Worker(BlockingQueue<Job> in, BlockingQueue<Job> out, Step step, AtomicInteger running, Semaphore permits)
+        {
+            this.in = in;
+            this.out = out;
+            this.step = step;
+            this.running = running;
+            this.permits = permits;
+        }
+
+        public void run()
+        {
+            try {
+                for (Job job = in.take(); job != END; job = in.take()) {
+                    if (job.error == null) {
+                        permits.acquire();
+                        try {
+                            step.run(job);
+                        } catch (Throwable e) {
+                            job.error = e;
+                            job.data = null;
+                            job.image = null;
+                            job.drawing = null;
+                            job.text = null;
+                            job.png = null;
+                        } finally {
+                            permits.release();
+                        }
+                    }
+                    out.put(job);
+                }
+
+                // Leave END for the other workers of the stage
+                in.put(END);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } finally {
+                if (running.decrementAndGet() == 0)
+                    putEnd(out);
+            }
+        }
+    }
+
+    // Put END on the queue even if interrupted, keeping the interrupt
+    private static void putEnd(BlockingQueue<Job> queue)
+    {
+        boolean interrupted = false;
+        while (true) {
+            try {
+                queue.put(END);
+                break;
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+
+        if (interrupted)
+            Thread.currentThread().interrupt();
+    }
+
+    private final int cpuThreads;
+
+    private final int ioThreads;
+
+    // The totals of the jobs reported so far
+    private int images = 0;
+
+    private int failures = 0;
+
+    private long commands = 0;
+
+    private long bytes = 0;
+
+    ImagePipeline(int cpuThreads, int ioThreads)
+    {
+        this.cpuThreads = cpuThreads;
+        this.ioThreads = ioThreads;
+    }
+
+    // Run the images in the files through the stages, and report each one
+    // as it is done, with its numbers or its error
+    void run(List<Path> files) throws InterruptedException
+    {
+        int capacity = 2 * Math.max(cpuThreads, ioThreads);
+        BlockingQueue<Job> toRead = new ArrayBlockingQueue<>(capacity);
+        BlockingQueue<Job> toDecode = new ArrayBlockingQueue<>(capacity);
+        BlockingQueue<Job> toCompress = new ArrayBlockingQueue<>(capacity);
+        BlockingQueue<Job> toSerialise = new ArrayBlockingQueue<>(capacity);
+        BlockingQueue<Job> toEncode = new ArrayBlockingQueue<>(capacity);
+        BlockingQueue<Job> toWrite = new ArrayBlockingQueue<>(capacity);
+        // Done jobs only hold their numbers, so this one need not be bounded
+        BlockingQueue<Job> done = new LinkedBlockingQueue<>();
+
+        List<Worker> ioWorkers = new ArrayList<>();
+        List<Worker> cpuWorkers = new ArrayList<>();
+        Semaphore ioPermits = new Semaphore(ioThreads);
+        Semaphore cpuPermits = new Semaphore(cpuThreads);
+
+        stage(ioWorkers, ioThreads, ioPermits, toRead, toDecode, job -> job.data = Files.readAllBytes(job.file));
+
+        stage(cpuWorkers, cpuThreads, cpuPermits, toDecode, toCompress, job -> {
+            job.image = Image.read(ByteBuffer.wrap(job.data), "Empty file: " + job.file);
+            job.data = null;
+        });
+
+        stage(cpuWorkers, cpuThreads, cpuPermits, toCompress, toSerialise, job -> job.drawing = job.image.compress());
+
+        stage(cpuWorkers, cpuThreads, cpuPermits, toSerialise, toEncode, job -> {
+            ByteArrayOutputStream text = new ByteArrayOutputStream();
+            job.drawing.write(text);
+            job.text = text.toByteArray();
+            job.commands = job.drawing.commands.size();
+            job.drawing = null;
+        });
+
+        stage(cpuWorkers, cpuThreads, cpuPermits, toEncode, toWrite, job -> {
+            ByteArrayOutputStream png = new ByteArrayOutputStream();
+            job.image.writePNG(png);
+            job.png = png.toByteArray();
+            job.image = null;
+        });
+
+        stage(ioWorkers, ioThreads, ioPermits, toWrite, done, job -> {
+            Files.write(Paths.get(job.file + ".drawing"), job.text);
+            Files.write(Paths.get(job.file + ".png"), job.png);
+            job.bytes = job.text.length;
+            job.text = null;
+            job.png = null;
+        });
+
+        ExecutorService io = Executors.newFixedThreadPool(ioWorkers.size());
+        ExecutorService cpu = Executors.newFixedThreadPool(cpuWorkers.size());
+        ioWorkers.forEach(io::execute);
+        cpuWorkers.forEach(cpu::execute);
+        io.shutdown();
+        cpu.shutdown();
+
+        // Feed the files from another thread, so that this one can take the
+        // jobs that are done while the first queue is full
+        Thread feeder = new Thread(() -> {
+            try {
+                for (Path file : files)
+                    toRead.put(new Job(file));
+                toRead.put(END);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        feeder.start();
+
+        for (Job job = done.take(); job != END; job = done.take())
+            report(job);
+    }
+
+    // Print the line of a job that is done, and add it to the totals
+    private void report(Job job)
+    {
+        images++;
+        if (job.error != null) {
+            String reason = job.error instanceof BadFormat ? job.error.getMessage() : job.error.toString();
+            System.out.println(job.file + "\tfailed: " + reason);
+            failures++;
+            return;
+        }
+
+        long millis = (System.nanoTime() - job.start) / 1000000;
+        System.out.println(new BatchCompressor.Result(job.file, job.commands, job.bytes, millis));
+        commands += job.commands;
+        bytes += job.bytes;
+    }
+
+    private static void stage(List<Worker> workers, int threads, Semaphore permits, BlockingQueue<Job> in, BlockingQueue<Job> out, Step step)
+    {
+        AtomicInteger running = new AtomicInteger(threads);
+        for (int k = 0; k < threads; k++)
+            workers.add(new Worker(in, out, step, running, permits));
+    }
+
+    public static void main(String[] args) throws InterruptedException
+    {
+        int cpuThreads = Runtime.getRuntime().availableProcessors();
+        int ioThreads = 4;
+        List<String> patterns = new ArrayList<>();
+
+        for (int k = 0; k < args.length; k++) {
+            if (args[k].equals("-j") && k + 1 < args.length) {
+                cpuThreads = Integer.parseInt(args[++k]);
+            } else if (args[k].equals("--io") && k + 1 < args.length) {
+                ioThreads = Integer.parseInt(args[++k]);
+            } else {
+                patterns.add(args[k]);
+            }
+        }
+
+        if (patterns.isEmpty() || cpuThreads < 1 || ioThreads < 1) {
+            System.out.println("Usage: java ImagePipeline [-j threads] [--io threads] <directory or glob>...");
+            System.exit(1);
+        }
+
+        List<Path> files = new ArrayList<>();
+        for (String pattern : patterns) {
+            try {
+                List<Path> found = BatchCompressor.findImages(pattern);
+                if (found.isEmpty())
+                    System.out.println("No images match: " + pattern);
+                files.addAll(found);
+            } catch (IOException e) {
+                System.out.println("Unable to list " + pattern + ": " + e.getMessage());
+                System.exit(1);
+            }
+        }
+
+        long start = System.nanoTime();
+        ImagePipeline pipeline = new ImagePipeline(cpuThreads, ioThreads);
+        pipeline.run(files);
+
+        long millis = (System.nanoTime() - start) / 1000000;
+        System.out.println(pipeline.images + " images\t" + pipeline.commands + " commands\t" + pipeline.bytes + " bytes\t" + millis + " ms");
+
+        if (pipeline.failures > 0)
+            System.exit(1);
+    }
+}
@@ -0,0 +1,118 @@
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.RecursiveTask;
+
+// Compresses an Image in square tiles, each with its own Compressor, on the
+// common fork-join pool. The tiles share the background of the whole image,
+// and their commands are joined in row-major order of the tiles, with a
+// non-painting move to the top left corner of each tile before its commands.
+//
+// Commands of a tile never paint outside of it, so the order in which tiles
+// are drawn does not matter. What tiling costs is the moves between tiles,
+// counted by getStitchCommands(), and the runs cut at the tile edges.
+class TiledCompressor
+{
+
+    // Big enough that most runs fit in a tile, and a multiple of 16 so that
+    // tiles are copied a word at a time
+    static final int TILE_SIZE = 128;
+
+    private final Image image;
+
+    private final int tileSize;
+
+    private int stitchCommands = 0;
+
+    TiledCompressor(Image image, int tileSize)
+    {
+        if (tileSize < 1)
+            throw new IllegalArgumentException("Tile size must be positive: " + tileSize);
+
+        this.image = image;
+        this.tileSize = tileSize;
+    }
+
+    Drawing compress()
+    {
+        int h = image.getHeight();
+        int w = image.getWidth();
+        int background = Compressor.chooseBackground(image);
+
+        // Forked from outside of a pool, the tiles run on the common pool
+        List<Tile> tiles = new ArrayList<>();
+        for (int y = 0; y < h; y += tileSize) {
+            for (int x = 0; x < w; x += tileSize) {
+                Tile t = new Tile(x, y, Math.min(tileSize, h - y), Math.min(tileSize, w - x), background);
+                t.fork();
+                tiles.add(t);
+            }
+        }
+
+        Drawing drawing = new Drawing(h, w, background);
+        stitchCommands = 0;
+        int cx = 0;
+        int cy = 0;
+        for (Tile t : tiles) {
+            CommandBuffer commands = t.join().commands;
+            if (commands.size() == 0)
+                continue;
+
+            if (t.x != cx) {
+                drawing.addCommand(t.x > cx ? Direction.RIGHT : Direction.LEFT, Math.abs(t.x - cx), false, 0);
+                stitchCommands++;
+            }
+            if (t.y != cy) {
+                drawing.addCommand(t.y > cy ? Direction.DOWN : Direction.UP, Math.abs(t.y - cy), false, 0);
+                stitchCommands++;
+            }
+
+            // The commands of the tile are relative, so they are copied as
+            // they are, following them to find where the cursor ends
+            cx = t.x;
+            cy = t.y;
+            for (int k = 0; k < commands.size(); k++) {
+                Direction dir = commands.getDirection(k);
+                int distance = commands.getDistance(k);
+                drawing.commands.addCode(commands.getCode(k), distance);
+                cx += dir.getDeltaX() * distance;
+                cy += dir.getDeltaY() * distance;
+            }
+        }
+
+        return drawing;
+    }
+
+    // The number of commands added to move between tiles by the last call
+    // to compress()
+    int getStitchCommands()
+    {
+        return stitchCommands;
+    }
+
+    private class Tile extends RecursiveTask<Drawing>
+    {
+        private final int x;
+
+        private final int y;
+
+        private final int height;
+
+        private final int width;
+
+        private final int background;
+
+        Tile(int x, int y, int height, int width, int background)
+        {
+            this.x = x;
+            this.y = y;
+            this.height = height;
+            this.width = width;
+            this.background = background;
+        }
+
+        protected Drawing compute()
+        {
+            return new Compressor(image.tile(x, y, height, width), background).compress();
+        }
+    }
+}